@@ -0,0 +1,133 @@
+// The MIT License (MIT)
+//
+// Copyright (c) Eclypses, Inc.
+//
+// All rights reserved.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+package com.mte.relay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+// MteHelper pool behaviour. Pairs hold native MTE encoders, so this runs on a device.
+@RunWith(AndroidJUnit4.class)
+public class MteHelperTest {
+
+    private MteHelper mteHelper;
+
+    @Before
+    public void setUp() {
+        mteHelper = new MteHelper();
+        List<StoredHostState.PairState> pairStates = new ArrayList<>();
+        for (String pairId : new String[]{"pair-a", "pair-b", "pair-c"}) {
+            pairStates.add(new StoredHostState.PairState(pairId, new byte[32], new byte[32]));
+        }
+        mteHelper.refillPairMap(pairStates);
+    }
+
+    @Test
+    public void quarantinedPairStaysUsableUntilReturned() throws InterruptedException {
+        Pair pair = mteHelper.leasePair();
+
+        assertTrue(mteHelper.quarantinePair(pair.pairId));
+
+        assertEquals(2, mteHelper.getPoolSize());
+        assertNotNull(mteHelper.markEncoderState(pair.pairId));
+        mteHelper.returnPair(pair.pairId);
+        assertNull(mteHelper.markEncoderState(pair.pairId));
+    }
+
+    @Test
+    public void quarantinedPairIsNeverLeasedAgain() throws InterruptedException {
+        Pair pair = mteHelper.leasePair();
+        assertTrue(mteHelper.quarantinePair(pair.pairId));
+        mteHelper.returnPair(pair.pairId);
+
+        Pair first = mteHelper.leasePair();
+        Pair second = mteHelper.leasePair();
+
+        assertFalse(pair.pairId.equals(first.pairId));
+        assertFalse(pair.pairId.equals(second.pairId));
+        assertNull(mteHelper.leasePairIfFree());
+    }
+
+    // Requests keep leasing and using Pairs while one of them is quarantined. Every leased
+    // Pair must resolve until it is returned, and the quarantined one must not come back.
+    @Test
+    public void pairsReleasedDuringQuarantineStayResolvable() throws InterruptedException {
+        int workerCount = 3;
+        AtomicBoolean quarantined = new AtomicBoolean();
+        AtomicBoolean stop = new AtomicBoolean();
+        AtomicReference<String> failure = new AtomicReference<>();
+        CountDownLatch started = new CountDownLatch(workerCount);
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < workerCount; i++) {
+            Thread worker = new Thread(() -> {
+                started.countDown();
+                try {
+                    while (!stop.get()) {
+                        boolean leasedAfterQuarantine = quarantined.get();
+                        Pair pair = mteHelper.leasePair();
+                        if (mteHelper.markEncoderState(pair.pairId) == null) {
+                            failure.compareAndSet(null, pair.pairId + " did not resolve while leased");
+                        }
+                        if (leasedAfterQuarantine && pair.pairId.equals("pair-a")) {
+                            failure.compareAndSet(null, "pair-a was leased after its quarantine");
+                        }
+                        mteHelper.returnPair(pair.pairId);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        started.await();
+        Thread.sleep(50);
+        assertTrue(mteHelper.quarantinePair("pair-a"));
+        quarantined.set(true);
+        Thread.sleep(50);
+        stop.set(true);
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        assertNull(failure.get());
+        assertEquals(2, mteHelper.getPoolSize());
+        assertNull(mteHelper.markEncoderState("pair-a"));
+    }
+}
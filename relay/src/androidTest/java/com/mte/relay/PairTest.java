@@ -0,0 +1,120 @@
+// The MIT License (MIT)
+//
+// Copyright (c) Eclypses, Inc.
+//
+// All rights reserved.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+
+package com.mte.relay;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.eclypses.mte.MteBase;
+import com.eclypses.mte.MteKyber;
+import com.eclypses.mte.MteMkeDec;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+
+// Pair encoding against a decoder set up the way the relay server sets up its side. Pairs hold
+// native MTE encoders, so this runs on a device.
+@RunWith(AndroidJUnit4.class)
+public class PairTest {
+
+    private static final long NONCE = 42;
+
+    private Pair pair;
+    private MteMkeDec serverDecoder;
+
+    @BeforeClass
+    public static void initLicense() {
+        assertTrue(MteBase.initLicense(RelaySettings.licenseCompanyName, RelaySettings.licenseKey));
+    }
+
+    @Before
+    public void setUp() {
+        pair = new Pair();
+
+        // Answer the pairing request as the relay server does: a Kyber secret for each of the
+        // Pair's public keys, and a decoder for the Pair's encoder.
+        byte[] serverDecoderSecret = new byte[MteKyber.getSecretSize()];
+        pair.encResponderEncryptedSecret = new byte[MteKyber.getEncryptedSize()];
+        assertEquals(MteKyber.Success, new MteKyber().createSecret(pair.encMyPublicKey,
+                serverDecoderSecret, pair.encResponderEncryptedSecret));
+        pair.encNonce = NONCE;
+        byte[] serverEncoderSecret = new byte[MteKyber.getSecretSize()];
+        pair.decResponderEncryptedSecret = new byte[MteKyber.getEncryptedSize()];
+        assertEquals(MteKyber.Success, new MteKyber().createSecret(pair.decMyPublicKey,
+                serverEncoderSecret, pair.decResponderEncryptedSecret));
+        pair.decNonce = NONCE;
+        pair.createEncoderAndDecoder();
+
+        serverDecoder = new MteMkeDec();
+        serverDecoder.setEntropy(serverDecoderSecret);
+        serverDecoder.setNonce(NONCE);
+        assertFalse(MteBase.statusIsError(serverDecoder.instantiate(pair.encPersStr)));
+    }
+
+    // encode() hands the array it encoded into straight to the request, it only has to trim a
+    // copy when the encoded bytes don't fill it. They must fill it for every body length.
+    @Test
+    public void encodedBytesFillTheEncodeBuffer() {
+        for (int len : new int[]{1, 15, 16, 17, 31, 32, 33, 100, 1000, 4095, 4096, 4097, 65536}) {
+            byte[] body = body(len);
+
+            byte[] encoded = pair.encode(body, 0, len);
+
+            assertEquals("Encoded length for " + len + " bytes", pair.getEncodeBuffBytes(len), encoded.length);
+            MteBase.ArrStatus decoded = serverDecoder.decode(encoded);
+            assertFalse(MteBase.statusIsError(decoded.status));
+            assertArrayEquals(body, decoded.arr);
+        }
+    }
+
+    @Test
+    public void encodesASliceOfTheBody() {
+        byte[] body = body(100);
+
+        byte[] encoded = pair.encode(body, 10, 50);
+
+        assertEquals(pair.getEncodeBuffBytes(50), encoded.length);
+        MteBase.ArrStatus decoded = serverDecoder.decode(encoded);
+        assertFalse(MteBase.statusIsError(decoded.status));
+        assertArrayEquals(Arrays.copyOfRange(body, 10, 60), decoded.arr);
+    }
+
+    private static byte[] body(int len) {
+        byte[] body = new byte[len];
+        for (int i = 0; i < len; i++) {
+            body[i] = (byte) (i * 31 + len);
+        }
+        return body;
+    }
+}
@@ -408,6 +408,34 @@ public class MteBase
     return new String(buff, startOff, bytes, StandardCharsets.UTF_8);
   }
 
+  // Return the data remaining in the given buffer as an array of exactly that
+  // length, for library functions that only take a whole array. The buffer's
+  // own array is returned when it holds exactly the remaining data; otherwise
+  // the data is copied. The buffer's position is not changed.
+  protected static byte[] getRemainingArray(ByteBuffer buff)
+  {
+    if (buff.hasArray() &&
+        buff.arrayOffset() + buff.position() == 0 &&
+        buff.remaining() == buff.array().length)
+    {
+      return buff.array();
+    }
+    byte[] arr = new byte[buff.remaining()];
+    buff.duplicate().get(arr);
+    return arr;
+  }
+
+  // Return a scratch array of at least the given length. The same array is
+  // returned by later calls, so it is only valid until then.
+  protected byte[] getScratchArray(int bytes)
+  {
+    if (bytes > myScratch.length)
+    {
+      myScratch = new byte[bytes];
+    }
+    return myScratch;
+  }
+
   // The entropy callback.
   private int entropyCallback(int minEntropy, int minLength, long maxLength)
   {
@@ -477,6 +505,9 @@ public class MteBase
   // Nonce length when set as an integer.
   private int myNonceIntBytes;
 
+  // Scratch array for copying data out of buffers without an array.
+  private byte[] myScratch = new byte[0];
+
   // Static initializer.
   static
   {
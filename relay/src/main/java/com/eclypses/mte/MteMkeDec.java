@@ -322,6 +322,102 @@ public class MteMkeDec extends MteBase
     return myOffLenStatus;
   }
 
+  // Decode/decrypt the encoded version remaining in the given buffer to the
+  // decoded buffer at its position. The decoded buffer must be writable and
+  // must have at least getBuffBytes() bytes remaining. Returns the offset of
+  // the decoded data in the decoded buffer, length of the decoded data, and
+  // status. On success the encoded buffer's position is moved to its limit and
+  // the decoded buffer's position past the decoded data.
+  //
+  // A decoded buffer backed by an array or direct is written in place, any
+  // other is written through a temporary array. The library reads the encoded
+  // version from an array, so one in a buffer without an accessible array is
+  // copied to one first.
+  public OffLenStatus decode(ByteBuffer encoded, ByteBuffer decoded)
+  {
+    int encBytes = encoded.remaining();
+    int decPos = decoded.position();
+    int buffBytes = buffBytes(myDecoder, encBytes);
+    if (decoded.isReadOnly() || buffBytes == 0 || buffBytes > decoded.remaining())
+    {
+      myOffLenStatus.status = MteStatus.mte_status_invalid_input;
+      myOffLenStatus.off = 0;
+      myOffLenStatus.bytes = 0;
+      return myOffLenStatus;
+    }
+
+    // Decode.
+    myDecOff = 0;
+    myDecBytes = 0;
+    int decBase;
+    byte[] decArr = null;
+    int decArrOff = 0;
+    byte[] decTemp = null;
+    if (decoded.hasArray())
+    {
+      decArr = decoded.array();
+      decArrOff = decoded.arrayOffset() + decPos;
+      decBase = -decoded.arrayOffset();
+    }
+    else if (decoded.isDirect())
+    {
+      // The library writes from the start of the slice.
+      decBase = decPos;
+    }
+    else
+    {
+      decArr = decTemp = new byte[buffBytes];
+      decBase = decPos;
+    }
+    if (decArr == null)
+    {
+      myOffLenStatus.status =
+        MteStatus.valueOf(decodeB(myDecoder,
+                                  getRemainingArray(encoded),
+                                  decoded.slice()));
+    }
+    else
+    {
+      byte[] encArr;
+      int encOff;
+      if (encoded.hasArray())
+      {
+        encArr = encoded.array();
+        encOff = encoded.arrayOffset() + encoded.position();
+      }
+      else
+      {
+        encArr = getScratchArray(encBytes);
+        encOff = 0;
+        encoded.duplicate().get(encArr, 0, encBytes);
+      }
+      myOffLenStatus.status =
+        MteStatus.valueOf(decodeA(myDecoder,
+                                  encArr, encOff, encBytes,
+                                  decArr, decArrOff));
+    }
+    if (statusIsError(myOffLenStatus.status))
+    {
+      myOffLenStatus.off = 0;
+      myOffLenStatus.bytes = 0;
+      return myOffLenStatus;
+    }
+    if (decTemp != null)
+    {
+      // Copy the decoded data into place.
+      ByteBuffer decDest = decoded.duplicate();
+      ((Buffer)decDest).position(decPos + myDecOff);
+      decDest.put(decTemp, myDecOff, myDecBytes);
+    }
+
+    // Set the decoded offset and length and move the positions.
+    myOffLenStatus.off = decBase + myDecOff;
+    myOffLenStatus.bytes = myDecBytes;
+    ((Buffer)encoded).position(encoded.limit());
+    ((Buffer)decoded).position(myOffLenStatus.off + myOffLenStatus.bytes);
+    return myOffLenStatus;
+  }
+
   // Start a chunk-based decryption session. Returns the status.
   public MteStatus startDecrypt()
   {
@@ -365,6 +461,113 @@ public class MteMkeDec extends MteBase
                          decrypted, decOff);
   }
 
+  // Decrypt the data remaining in the given buffer in a chunk-based decryption
+  // session. Some decrypted data is written to the decrypted buffer at its
+  // position, which must be writable and have at least the encrypted length
+  // plus one cipher block remaining. A decrypted buffer without an accessible
+  // array that is not direct is written through a temporary array. On success
+  // the encrypted buffer's position is moved to its limit and the decrypted
+  // buffer's position past the decrypted data. The amount decrypted is
+  // returned. Returns -1 on error.
+  public int decryptChunk(ByteBuffer encrypted, ByteBuffer decrypted)
+  {
+    int encBytes = encrypted.remaining();
+    int decPos = decrypted.position();
+    int buffBytes = encBytes + myCiphBlockBytes;
+    if (decrypted.isReadOnly() || buffBytes > decrypted.remaining())
+    {
+      return -1;
+    }
+
+    // Decrypt the chunk.
+    int dBytes;
+    byte[] decArr = null;
+    int decArrOff = 0;
+    byte[] decTemp = null;
+    if (decrypted.hasArray())
+    {
+      decArr = decrypted.array();
+      decArrOff = decrypted.arrayOffset() + decPos;
+    }
+    else if (!decrypted.isDirect())
+    {
+      decArr = decTemp = new byte[buffBytes];
+    }
+    if (decArr == null)
+    {
+      dBytes = decryptChunkB(myDecoder, myDecryptor,
+                             getRemainingArray(encrypted),
+                             decrypted.slice());
+    }
+    else
+    {
+      byte[] encArr;
+      int encOff;
+      if (encrypted.hasArray())
+      {
+        encArr = encrypted.array();
+        encOff = encrypted.arrayOffset() + encrypted.position();
+      }
+      else
+      {
+        encArr = getScratchArray(encBytes);
+        encOff = 0;
+        encrypted.duplicate().get(encArr, 0, encBytes);
+      }
+      dBytes = decryptChunkA(myDecoder, myDecryptor,
+                             encArr, encOff, encBytes,
+                             decArr, decArrOff);
+    }
+    if (dBytes < 0)
+    {
+      return -1;
+    }
+    if (decTemp != null)
+    {
+      // Copy the decrypted data into place.
+      ByteBuffer decDest = decrypted.duplicate();
+      ((Buffer)decDest).position(decPos);
+      decDest.put(decTemp, 0, dBytes);
+    }
+
+    // Move the positions.
+    ((Buffer)encrypted).position(encrypted.limit());
+    ((Buffer)decrypted).position(decPos + dBytes);
+    return dBytes;
+  }
+
+  // Finish a chunk-based decryption session. Writes the final part of the
+  // result to the given buffer at its position and moves the position past
+  // it. The buffer must have at least the chosen cipher's block size
+  // remaining. Returns the offset of the result in the buffer, its length,
+  // and status.
+  public OffLenStatus finishDecrypt(ByteBuffer decrypted)
+  {
+    // Finish the decrypt session.
+    myDecOff = 0;
+    myDecBytes = 0;
+    myOffLenStatus.status = MteStatus.valueOf(decryptFinish(myDecoder,
+                                                            myDecryptor));
+    if (statusIsError(myOffLenStatus.status))
+    {
+      myOffLenStatus.off = 0;
+      myOffLenStatus.bytes = 0;
+      return myOffLenStatus;
+    }
+
+    // Copy the final decrypted data.
+    myOffLenStatus.off = decrypted.position();
+    myOffLenStatus.bytes = myDecBytes;
+    if (myOffLenStatus.bytes != 0)
+    {
+      ByteBuffer result = myDecryptor.duplicate();
+      ((Buffer)result).position(myDecOff);
+      ((Buffer)result).limit(myDecOff + myDecBytes);
+      decrypted.put(result);
+    }
+    return myOffLenStatus;
+  }
+
   // Finish a chunk-based decryption session. Returns the final part of the
   // result and status.
   public ArrStatus finishDecrypt()
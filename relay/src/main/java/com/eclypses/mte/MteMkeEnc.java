@@ -263,6 +263,114 @@ public class MteMkeEnc extends MteBase
     return myOffLenStatus;
   }
 
+  // Encode/encrypt the data remaining in the given buffer to the encoded
+  // buffer at its position. The encoded buffer must be writable and must have
+  // at least getBuffBytes() bytes remaining. Returns the offset of the encoded
+  // version in the encoded buffer, length of the encoded version, and status.
+  // On success the data buffer's position is moved to its limit and the
+  // encoded buffer's position past the encoded version.
+  //
+  // An encoded buffer backed by an array or direct is written in place, any
+  // other is written through a temporary array. The library reads the data
+  // from an array, so data in a buffer without an accessible one is copied to
+  // one first.
+  public OffLenStatus encode(ByteBuffer data, ByteBuffer encoded)
+  {
+    int dataBytes = data.remaining();
+    int encPos = encoded.position();
+    int buffBytes = buffBytes(myEncoder, dataBytes);
+    if (encoded.isReadOnly() || buffBytes > encoded.remaining())
+    {
+      myOffLenStatus.status = MteStatus.mte_status_invalid_input;
+      myOffLenStatus.off = 0;
+      myOffLenStatus.bytes = 0;
+      return myOffLenStatus;
+    }
+
+    // Encode.
+    myEncOff = 0;
+    myEncBytes = 0;
+    int encBase;
+    byte[] encArr = null;
+    int encArrOff = 0;
+    byte[] encTemp = null;
+    if (encoded.hasArray())
+    {
+      encArr = encoded.array();
+      encArrOff = encoded.arrayOffset() + encPos;
+      encBase = -encoded.arrayOffset();
+    }
+    else if (encoded.isDirect())
+    {
+      // The library writes from the start of the slice.
+      encBase = encPos;
+    }
+    else
+    {
+      encArr = encTemp = new byte[buffBytes];
+      encBase = encPos;
+    }
+    if (encArr == null)
+    {
+      myOffLenStatus.status =
+        MteStatus.valueOf(encodeB(myEncoder,
+                                  getRemainingArray(data),
+                                  encoded.slice()));
+    }
+    else
+    {
+      byte[] dataArr;
+      int dataOff;
+      if (data.hasArray())
+      {
+        dataArr = data.array();
+        dataOff = data.arrayOffset() + data.position();
+      }
+      else
+      {
+        dataArr = getScratchArray(dataBytes);
+        dataOff = 0;
+        data.duplicate().get(dataArr, 0, dataBytes);
+      }
+      myOffLenStatus.status =
+        MteStatus.valueOf(encodeA(myEncoder,
+                                  dataArr, dataOff, dataBytes,
+                                  encArr, encArrOff));
+    }
+    if (myOffLenStatus.status != MteStatus.mte_status_success)
+    {
+      myOffLenStatus.off = 0;
+      myOffLenStatus.bytes = 0;
+      return myOffLenStatus;
+    }
+    if (encTemp != null)
+    {
+      // Copy the encoded version into place.
+      ByteBuffer encDest = encoded.duplicate();
+      ((Buffer)encDest).position(encPos + myEncOff);
+      encDest.put(encTemp, myEncOff, myEncBytes);
+    }
+
+    // Set the encoded offset and length and move the positions.
+    myOffLenStatus.off = encBase + myEncOff;
+    myOffLenStatus.bytes = myEncBytes;
+    ((Buffer)data).position(data.limit());
+    ((Buffer)encoded).position(myOffLenStatus.off + myOffLenStatus.bytes);
+    return myOffLenStatus;
+  }
+
+  // Encode the data remaining in the given buffer to Base64. On success the
+  // buffer's position is moved to its limit.
+  public StrStatus encodeB64(ByteBuffer data)
+  {
+    encodeB64(getRemainingArray(data));
+    if (myStrStatus.status == MteStatus.mte_status_success)
+    {
+      ((Buffer)data).position(data.limit());
+    }
+    return myStrStatus;
+  }
+
   // Returns the length of the result finishEncrypt() will produce. Use this
   // if you need to know that size before you can call it.
   public int encryptFinishBytes()
@@ -326,6 +434,34 @@ public class MteMkeEnc extends MteBase
     return myArrStatus;
   }
 
+  // Finish a chunk-based encryption session. Writes the final part of the
+  // result to the given buffer at its position and moves the position past it.
+  // The buffer must have at least encryptFinishBytes() bytes remaining.
+  // Returns the offset of the result in the buffer, its length, and status.
+  public OffLenStatus finishEncrypt(ByteBuffer encoded)
+  {
+    // Finish the encrypt session.
+    myEncOff = 0;
+    myEncBytes = 0;
+    myOffLenStatus.status =
+      MteStatus.valueOf(encryptFinish(myEncoder, myEncBuff));
+    if (myOffLenStatus.status != MteStatus.mte_status_success)
+    {
+      myOffLenStatus.off = 0;
+      myOffLenStatus.bytes = 0;
+      return myOffLenStatus;
+    }
+
+    // Copy the tokenized hash.
+    myOffLenStatus.off = encoded.position();
+    myOffLenStatus.bytes = myEncBytes;
+    ByteBuffer result = myEncBuff.duplicate();
+    ((Buffer)result).position(myEncOff);
+    ((Buffer)result).limit(myEncOff + myEncBytes);
+    encoded.put(result);
+    return myOffLenStatus;
+  }
+
   // Uninstantiate the encoder/encryptor. It is no longer usable after this
   // call Returns the status.
   public MteStatus uninstantiate()
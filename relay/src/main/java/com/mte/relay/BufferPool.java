@@ -0,0 +1,85 @@
+// The MIT License (MIT)
+//
+// Copyright (c) Eclypses, Inc.
+//
+// All rights reserved.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+package com.mte.relay;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+// Shared pool of byte arrays for streaming encryption and decryption, so a transfer reuses a
+// few buffers however large it is. Arrays come in power of two size classes from 1 KB to
+// 4 MB, each class keeps up to BUFFERS_PER_CLASS spare arrays. Larger requests are allocated
+// and dropped as usual.
+final class BufferPool {
+
+    private static final int MIN_CLASS_SHIFT = 10;
+    private static final int MAX_CLASS_SHIFT = 22;
+    private static final int BUFFERS_PER_CLASS = 8;
+
+    private static final List<BlockingQueue<byte[]>> sizeClasses = createSizeClasses();
+
+    private BufferPool() {
+    }
+
+    private static List<BlockingQueue<byte[]>> createSizeClasses() {
+        int classCount = MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1;
+        List<BlockingQueue<byte[]>> classes = new ArrayList<>(classCount);
+        for (int i = 0; i < classCount; i++) {
+            classes.add(new ArrayBlockingQueue<>(BUFFERS_PER_CLASS));
+        }
+        return classes;
+    }
+
+    // An array of at least minBytes. Its contents are undefined. Hand it back with release().
+    static byte[] acquire(int minBytes) {
+        int sizeClass = sizeClassOf(minBytes);
+        if (sizeClass < 0) {
+            return new byte[minBytes];
+        }
+        byte[] buffer = sizeClasses.get(sizeClass).poll();
+        return buffer != null ? buffer : new byte[1 << (sizeClass + MIN_CLASS_SHIFT)];
+    }
+
+    // Arrays that did not come from acquire() are ignored, as are arrays once their class is
+    // full. The caller must not use the array afterwards.
+    static void release(byte[] buffer) {
+        if (buffer == null) {
+            return;
+        }
+        int sizeClass = sizeClassOf(buffer.length);
+        if (sizeClass >= 0 && buffer.length == 1 << (sizeClass + MIN_CLASS_SHIFT)) {
+            sizeClasses.get(sizeClass).offer(buffer);
+        }
+    }
+
+    private static int sizeClassOf(int bytes) {
+        if (bytes > 1 << MAX_CLASS_SHIFT) {
+            return -1;
+        }
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(bytes, 1) - 1);
+        return Math.max(shift, MIN_CLASS_SHIFT) - MIN_CLASS_SHIFT;
+    }
+}
@@ -0,0 +1,236 @@
+// The MIT License (MIT)
+//
+// Copyright (c) Eclypses, Inc.
+//
+// All rights reserved.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+package com.mte.relay;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+
+// Bounded ring of chunk buffers between the code writing an upload body and the thread that
+// encrypts and sends it. The writer fills a whole chunk before handing it over, so a hand-off
+// moves streamChunkSize bytes instead of the 1 KB of a pipe, and the sending thread encrypts
+// each chunk in place. Once all chunks are in use the writer waits for one to come back.
+class ChunkRing {
+
+    private static final int RING_CHUNKS = 4;
+
+    static final class Chunk {
+        final byte[] data;
+        int length;
+
+        Chunk(byte[] data) {
+            this.data = data;
+        }
+    }
+
+    // Marks the end of the body in filled, and an aborted upload in free.
+    private static final Chunk END = new Chunk(new byte[0]);
+
+    private final int chunkSize;
+    private final Chunk[] chunks;
+    private final ArrayBlockingQueue<Chunk> free;
+    // One more than the chunks, so END always fits.
+    private final ArrayBlockingQueue<Chunk> filled;
+    private final Sink sink = new Sink();
+    private volatile boolean aborted;
+    private volatile Throwable writerError;
+
+    ChunkRing(int chunkSize) {
+        this.chunkSize = chunkSize;
+        chunks = new Chunk[RING_CHUNKS];
+        free = new ArrayBlockingQueue<>(RING_CHUNKS);
+        filled = new ArrayBlockingQueue<>(RING_CHUNKS + 1);
+        for (int i = 0; i < RING_CHUNKS; i++) {
+            chunks[i] = new Chunk(BufferPool.acquire(chunkSize));
+            free.add(chunks[i]);
+        }
+    }
+
+    // The writer's end. It is a PipedOutputStream so existing RelayStreamCallbacks can be
+    // handed it, and a WritableByteChannel for RelayChannelStreamCallback.
+    Sink sink() {
+        return sink;
+    }
+
+    // Called once the writer is done, with the exception it failed with, if any. Ends the body
+    // unless the writer closed the sink already.
+    void finish(Throwable error) {
+        if (error != null) {
+            writerError = error;
+            sink.end(false);
+        } else {
+            sink.end(true);
+        }
+    }
+
+    // The next filled chunk, or null at the end of the body. Throws if the writer failed.
+    Chunk take() throws IOException {
+        Chunk chunk;
+        try {
+            chunk = filled.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for upload data.");
+        }
+        if (chunk == END) {
+            if (writerError != null) {
+                throw new IOException("Unable to read upload data. Exception: " + writerError, writerError);
+            }
+            return null;
+        }
+        return chunk;
+    }
+
+    // Hand a chunk taken with take() back to the writer.
+    void recycle(Chunk chunk) {
+        chunk.length = 0;
+        free.add(chunk);
+    }
+
+    // The upload failed, make the writer's next write fail instead of waiting for a chunk.
+    void abort() {
+        aborted = true;
+        free.offer(END);
+    }
+
+    // Return the buffers to the pool. Only once the writer has finished.
+    void release() {
+        for (Chunk chunk : chunks) {
+            BufferPool.release(chunk.data);
+        }
+    }
+
+    final class Sink extends PipedOutputStream implements WritableByteChannel {
+
+        private Chunk current;
+        private boolean closed;
+
+        @Override
+        public synchronized void connect(PipedInputStream snk) throws IOException {
+            throw new IOException("The upload stream can't be connected to a PipedInputStream.");
+        }
+
+        @Override
+        public synchronized void write(int b) throws IOException {
+            Chunk chunk = currentChunk();
+            chunk.data[chunk.length++] = (byte) b;
+            publishIfFull();
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            if (off < 0 || len < 0 || len > b.length - off) {
+                throw new IndexOutOfBoundsException();
+            }
+            while (len > 0) {
+                Chunk chunk = currentChunk();
+                int bytes = Math.min(len, chunkSize - chunk.length);
+                System.arraycopy(b, off, chunk.data, chunk.length, bytes);
+                chunk.length += bytes;
+                off += bytes;
+                len -= bytes;
+                publishIfFull();
+            }
+        }
+
+        @Override
+        public synchronized int write(ByteBuffer src) throws IOException {
+            int written = src.remaining();
+            while (src.hasRemaining()) {
+                Chunk chunk = currentChunk();
+                int bytes = Math.min(src.remaining(), chunkSize - chunk.length);
+                src.get(chunk.data, chunk.length, bytes);
+                chunk.length += bytes;
+                publishIfFull();
+            }
+            return written;
+        }
+
+        // Chunks are sent as they fill up, or on close.
+        @Override
+        public synchronized void flush() {
+        }
+
+        @Override
+        public synchronized boolean isOpen() {
+            return !closed;
+        }
+
+        @Override
+        public void close() {
+            end(true);
+        }
+
+        synchronized void end(boolean sendCurrent) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (current != null) {
+                if (sendCurrent && current.length > 0) {
+                    filled.add(current);
+                } else {
+                    recycle(current);
+                }
+                current = null;
+            }
+            filled.add(END);
+        }
+
+        private Chunk currentChunk() throws IOException {
+            if (closed) {
+                throw new ClosedChannelException();
+            }
+            if (current == null) {
+                Chunk chunk;
+                try {
+                    chunk = free.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for a free upload chunk.");
+                }
+                if (chunk == END || aborted) {
+                    // Leave the marker for any later write.
+                    free.offer(END);
+                    throw new IOException("The upload was aborted.");
+                }
+                current = chunk;
+            }
+            return current;
+        }
+
+        private void publishIfFull() {
+            if (current.length == chunkSize) {
+                filled.add(current);
+                current = null;
+            }
+        }
+    }
+}
@@ -67,48 +67,61 @@ public class FileDownloadHelper {
         httpConn.setRequestProperty("x-mte-relay", RelayOptions.formatMteRelayHeader(properties.relayOptions));
     }
 
+    // Runs the download on the calling thread, which is one of the relay request threads.
     public void downloadFile(StoreStatesCallback callback) {
-        Thread networkThread = new Thread(() -> {
-            Map<String, List<String>> processedHeaders = Collections.emptyMap();
-            try {
-                if (httpConn.getResponseCode() == HttpURLConnection.HTTP_OK) {
-                    RelayOptions responseRelayOptions = NetworkHeaderHelper.getRelayHeaderValues(httpConn);
-                    responsePairId = responseRelayOptions.pairId;
-                    processedHeaders = NetworkHeaderHelper.processHttpConnResponseHeaders(httpConn,
-                            mteHelper,
-                            responsePairId);
-                    processFileDownloadStream(downloadPath);
-
-                    JSONObject jsonResponse = getJsonResponse(downloadPath);
-                    listener.onResponse(jsonResponse, processedHeaders);
-                    callback.onCallback();
-                } else {
-                    listener.onError(httpConn.getResponseMessage(),processedHeaders);
-                    callback.onCallback();
-                }
-            } catch (IOException | JSONException | MteException e) {
-                listener.onError(e.getMessage(), processedHeaders);
-            } finally {
-                httpConn.disconnect();
+        Map<String, List<String>> processedHeaders = Collections.emptyMap();
+        try {
+            if (httpConn.getResponseCode() == HttpURLConnection.HTTP_OK) {
+                RelayOptions responseRelayOptions = NetworkHeaderHelper.getRelayHeaderValues(httpConn);
+                responsePairId = responseRelayOptions.pairId;
+                processedHeaders = NetworkHeaderHelper.processHttpConnResponseHeaders(httpConn,
+                        mteHelper,
+                        responsePairId);
+                processFileDownloadStream(downloadPath);
+
+                JSONObject jsonResponse = getJsonResponse(downloadPath);
+                listener.onResponse(jsonResponse, processedHeaders);
+                callback.onCallback();
+            } else {
+                listener.onError(httpConn.getResponseMessage(),processedHeaders);
+                callback.onCallback();
             }
-        });
-        networkThread.start();
+        } catch (IOException | JSONException | MteException e) {
+            listener.onError(e.getMessage(), processedHeaders);
+        } finally {
+            httpConn.disconnect();
+            // A failed or cancelled download leaves its decrypt session unfinished.
+            mteHelper.abortChunkSessions(responsePairId);
+            mteHelper.abortChunkSessions(pairId);
+            // Hand the leased Pair back to the pool.
+            mteHelper.returnPair(pairId);
+        }
     }
 
     private void processFileDownloadStream(String downloadPath) throws IOException {
         InputStream inputStream = httpConn.getInputStream();
-        FileOutputStream outputStream = new FileOutputStream(downloadPath);
-        byte[] buffer = new byte[RelaySettings.streamChunkSize];
-        int bytesRead;
-        mteHelper.startDecrypt(responsePairId);
-        while ((bytesRead = inputStream.read(buffer)) != -1) {
-            byte[] buf = Arrays.copyOfRange(buffer, 0, bytesRead);
-            DecodeResult decodeChunkResult = mteHelper.decryptChunk(responsePairId, buf);
-            outputStream.write(decodeChunkResult.decodedBytes, 0, decodeChunkResult.decodedBytes.length);
-        }
-        DecodeResult finishDecryptResult = mteHelper.finishDecrypt(responsePairId);
-        if (finishDecryptResult.decodedBytes != null && finishDecryptResult.decodedBytes.length > 0) {
-            outputStream.write(finishDecryptResult.decodedBytes, 0, finishDecryptResult.decodedBytes.length);
+        // The same two pooled buffers serve every chunk, decrypting from one into the other.
+        byte[] buffer = BufferPool.acquire(RelaySettings.streamChunkSize);
+        byte[] decrypted = BufferPool.acquire(Pair.getDecryptChunkBuffBytes(buffer.length));
+        try (FileOutputStream outputStream = new FileOutputStream(downloadPath)) {
+            int bytesRead;
+            mteHelper.startDecrypt(responsePairId);
+            while ((bytesRead = inputStream.read(buffer)) != -1) {
+                int bytesDecrypted = mteHelper.decryptChunk(responsePairId,
+                        buffer,
+                        0,
+                        bytesRead,
+                        decrypted,
+                        0);
+                outputStream.write(decrypted, 0, bytesDecrypted);
+            }
+            DecodeResult finishDecryptResult = mteHelper.finishDecrypt(responsePairId);
+            if (finishDecryptResult.decodedBytes != null && finishDecryptResult.decodedBytes.length > 0) {
+                outputStream.write(finishDecryptResult.decodedBytes, 0, finishDecryptResult.decodedBytes.length);
+            }
+        } finally {
+            BufferPool.release(buffer);
+            BufferPool.release(decrypted);
         }
     }
 
@@ -122,6 +135,10 @@ public class FileDownloadHelper {
         return jsonResponse;
     }
 
+    HttpURLConnection getConnection() {
+        return httpConn;
+    }
+
     private EncodeResult encodeHeaders(String[] headersToEncode, Map<String, String> origHeaders) {
         Map<String, String> ctHeader = new HashMap<>();
 
@@ -27,17 +27,22 @@ package com.mte.relay;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 public class FileUploadHelper {
 
@@ -47,28 +52,33 @@ public class FileUploadHelper {
     private final String pairId;
     private final RelayDataTaskListener listener;
     private final RelayStreamCompletionCallback completionCallback;
-    private int origContentLength = 0;
+    private long origContentLength = 0;
     private final RelayStreamCallback relayStreamCallback;
-    private PipedOutputStream pipedOutputStream;
-    private PipedInputStream pipedInputStream;
+    private final File fileToUpload;
+    private final long partOffset;
+    private final long partLength;
+    private int responseStatus;
 
     public FileUploadHelper(RelayFileUploadProperties properties, RelayDataTaskListener listener, RelayStreamCompletionCallback completionCallback) throws IOException {
         this.relayStreamCallback = properties.relayStreamCallback;
+        this.fileToUpload = properties.fileToUpload;
+        this.partOffset = properties.partOffset;
+        this.partLength = properties.partLength;
         this.completionCallback = completionCallback;
-        File fileToUpload = properties.fileToUpload;
-        // Check that file size is less than 2 gig with a little room for FinishEncrypt bytes
-        if (fileToUpload.length() > 2147480000) {
-            throw new RelayException("RelayFileUploadHelper", "File to upload too large.");
-        }
-
         this.pairId = properties.relayOptions.pairId;
         this.mteHelper = properties.mteHelper;
 
         URL url = new URL(properties.hostUrl + properties.route);
         this.listener = listener;
 
-        origContentLength = Integer.parseInt(properties.origHeaders.get("Content-Length"));
-        int relayContentLength = origContentLength + getEncryptFinishBytes();
+        String contentLength = properties.origHeaders.get("Content-Length");
+        if (contentLength != null) {
+            origContentLength = Long.parseLong(contentLength.trim());
+        } else if (relayStreamCallback == null && fileToUpload != null) {
+            origContentLength = partLength >= 0 ? partLength : fileToUpload.length();
+        } else {
+            origContentLength = -1;
+        }
         EncodeResult encodedHeadersResult = NetworkHeaderHelper.processRequestHeaders(mteHelper,
                 pairId,
                 properties.headersToEncrypt,
@@ -78,7 +88,13 @@ public class FileUploadHelper {
         httpConn.setUseCaches(false);
         httpConn.setDoOutput(true); // indicates POST method
         httpConn.setDoInput(true);
-        httpConn.setRequestProperty("Content-Length", String.valueOf(relayContentLength));
+        // Stream the body instead of letting HttpURLConnection buffer all of it to work out the
+        // length. Chunked when the caller didn't say how long the file is.
+        if (origContentLength >= 0) {
+            httpConn.setFixedLengthStreamingMode(origContentLength + getEncryptFinishBytes());
+        } else {
+            httpConn.setChunkedStreamingMode(RelaySettings.streamChunkSize);
+        }
         httpConn.setRequestProperty("x-mte-relay-eh", encodedHeadersResult.encodedStr);
         httpConn.setRequestProperty("x-mte-relay", RelayOptions.formatMteRelayHeader(properties.relayOptions));
         outputStream = httpConn.getOutputStream();
@@ -88,71 +104,132 @@ public class FileUploadHelper {
 
         // Start by calling StartEncrypt
         mteHelper.startEncrypt(pairId);
-        getPipedStreams();
-
-        // Encrypt File Bytes in chunks
-        Thread encryptThread = encryptStream();
+        if (relayStreamCallback == null && fileToUpload != null) {
+            encryptFile();
+            getResponse(callback);
+            outputStream.close();
+            return;
+        }
+        ChunkRing ring = new ChunkRing(RelaySettings.streamChunkSize);
 
-        Thread readFileThread = new Thread(() -> {
-            relayStreamCallback.getRequestBodyStream(pipedOutputStream);
-            try {
-                // Pause this thread until the encryptThread is finished, to keep the OutputStream open.
-                encryptThread.join();
-            } catch (InterruptedException e) {
-                String threadName = Thread.currentThread().getName();
-                throw new RelayException(this.getClass().getSimpleName(),
-                        "Exception in " + threadName + ". Exception: " + e.getMessage());
-            }
-        });
-        readFileThread.start();
+        // The caller writes the file into the ring on a stream thread, while this thread
+        // encrypts each chunk in place and sends it on.
+        Future<?> readFileTask = RelayExecutors.stream().submit(() -> writeRequestBody(ring));
 
-        // Pause calling thread until encryptThread is complete
+        // Encrypt File Bytes in chunks
         try {
-            encryptThread.join();
-        } catch (InterruptedException e) {
-            String threadName = Thread.currentThread().getName();
-            throw new RelayException(this.getClass().getSimpleName(),
-                    "Exception in " + threadName + ". Exception: " + e.getMessage());
+            encryptStream(ring);
+        } catch (IOException | RuntimeException e) {
+            // Don't leave the writer waiting for a free chunk.
+            ring.abort();
+            throw e;
+        } finally {
+            if (awaitRequestBody(readFileTask)) {
+                ring.release();
+            }
         }
 
         getResponse(callback);
-        pipedOutputStream.close(); // Closes the pipedInputStream too.
         outputStream.close();
     }
 
-    private Thread encryptStream() {
-        Thread encryptThread = new Thread(() -> {
-            try {
-                byte[] buffer = new byte[RelaySettings.streamChunkSize];
-                int bytesRead;
-                int totalBytesRead = 0;
-
-                while ((bytesRead = pipedInputStream.read(buffer)) != -1) {
-                    totalBytesRead += bytesRead;
-                    mteHelper.encryptChunk(pairId, buffer, bytesRead);
-                    outputStream.write(buffer, 0, bytesRead);
-                    outputStream.flush();
-                    completionCallback.onProgressUpdate(totalBytesRead, origContentLength);
-                }
+    // Without a RelayStreamCallback the file is read here, on the request thread, straight into
+    // a pooled chunk that is encrypted in place and sent. No writer thread and no ring.
+    private void encryptFile() throws IOException {
+        byte[] buffer = BufferPool.acquire(RelaySettings.streamChunkSize);
+        ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, RelaySettings.streamChunkSize).slice();
+        long totalBytesRead = 0;
+
+        long bytesLeft = partLength >= 0 ? partLength : Long.MAX_VALUE;
+
+        try (FileChannel fileChannel = FileChannel.open(fileToUpload.toPath(), StandardOpenOption.READ)) {
+            fileChannel.position(partOffset);
+            int bytesRead;
+            while (bytesLeft > 0 && (bytesRead = readChunk(fileChannel, chunk, bytesLeft)) > 0) {
+                bytesLeft -= bytesRead;
+                totalBytesRead += bytesRead;
+                mteHelper.encryptChunk(pairId, buffer, bytesRead);
+                outputStream.write(buffer, 0, bytesRead);
+                completionCallback.onProgressUpdate(totalBytesRead, origContentLength);
+            }
+        } finally {
+            BufferPool.release(buffer);
+        }
+        writeFinishEncrypt();
+    }
 
-                // Now, write Finish Encrypt Bytes to Output Stream
-                EncodeResult finishEncryptResult = mteHelper.finishEncrypt(pairId);
-                outputStream.write(finishEncryptResult.encodedBytes);
-                outputStream.flush();
+    // Fill the chunk unless the file or part ends first, so every chunk but the last is full.
+    private static int readChunk(FileChannel fileChannel, ByteBuffer chunk, long bytesLeft) throws IOException {
+        chunk.clear();
+        if (bytesLeft < chunk.remaining()) {
+            chunk.limit((int) bytesLeft);
+        }
+        while (chunk.hasRemaining() && fileChannel.read(chunk) != -1) {
+            // Keep reading.
+        }
+        return chunk.position();
+    }
 
-            } catch (IOException e) {
-                String threadName = Thread.currentThread().getName();
-                throw new RelayException(this.getClass().getSimpleName(),
-                        "Exception in " + threadName + ". Exception: " + e.getMessage());
+    private void writeRequestBody(ChunkRing ring) {
+        ChunkRing.Sink sink = ring.sink();
+        Throwable error = null;
+        try {
+            if (relayStreamCallback instanceof RelayOutputStreamCallback) {
+                ((RelayOutputStreamCallback) relayStreamCallback).getRequestBodyStream((OutputStream) sink);
+            } else if (relayStreamCallback instanceof RelayChannelStreamCallback) {
+                ((RelayChannelStreamCallback) relayStreamCallback).getRequestBodyStream((WritableByteChannel) sink);
+            } else {
+                relayStreamCallback.getRequestBodyStream(sink);
             }
-        });
-        encryptThread.start();
-        return encryptThread;
+        } catch (Throwable e) {
+            error = e;
+        }
+        ring.finish(error);
     }
 
-    private void getPipedStreams() throws IOException {
-        pipedOutputStream = new PipedOutputStream();
-        pipedInputStream = new PipedInputStream(pipedOutputStream);
+    // Returns false if interrupted before the writer finished.
+    private boolean awaitRequestBody(Future<?> readFileTask) {
+        try {
+            readFileTask.get();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            // writeRequestBody() hands its failures to the ring.
+            return true;
+        }
+    }
+
+    private void encryptStream(ChunkRing ring) throws IOException {
+        ChunkRing.Chunk chunk;
+        long totalBytesRead = 0;
+
+        while ((chunk = ring.take()) != null) {
+            totalBytesRead += chunk.length;
+            mteHelper.encryptChunk(pairId, chunk.data, chunk.length);
+            outputStream.write(chunk.data, 0, chunk.length);
+            ring.recycle(chunk);
+            completionCallback.onProgressUpdate(totalBytesRead, origContentLength);
+        }
+
+        writeFinishEncrypt();
+    }
+
+    private void writeFinishEncrypt() throws IOException {
+        // Now, write Finish Encrypt Bytes to Output Stream
+        EncodeResult finishEncryptResult = mteHelper.finishEncrypt(pairId);
+        outputStream.write(finishEncryptResult.encodedBytes);
+        outputStream.flush();
+    }
+
+    HttpURLConnection getConnection() {
+        return httpConn;
+    }
+
+    // The HTTP status of the response, 0 until getResponse() has run.
+    int getResponseStatus() {
+        return responseStatus;
     }
 
     private int getEncryptFinishBytes() {
@@ -162,6 +239,7 @@ public class FileUploadHelper {
     public void getResponse(StoreStatesCallback callback) throws IOException, MteException {
 
         int status = httpConn.getResponseCode();
+        responseStatus = status;
         Map<String, List<String>> processedHeaders = Collections.emptyMap();
 
         if (status == HttpURLConnection.HTTP_OK) {
@@ -172,28 +250,33 @@ public class FileUploadHelper {
                     mteHelper,
                     responsePairId);
             InputStream inputStream = httpConn.getInputStream();
-            StringBuilder sb = new StringBuilder();
-            byte[] buffer = new byte[1024];
-            mteHelper.startDecrypt(responsePairId);
-            int bytesRead;
-            String charset = "UTF-8";
-            while ((bytesRead = inputStream.read(buffer)) != -1) {
-                byte[] decrypted = new byte[bytesRead];
-                int bytesDecrypted = mteHelper.decryptChunk(responsePairId,
-                        buffer,
-                        0,
-                        bytesRead,
-                        decrypted,
-                        0);
-                sb.append(new String(decrypted, charset), 0, bytesDecrypted);
+            // Collect the decrypted bytes and convert them once, a character may span chunks.
+            ByteArrayOutputStream responseBytes = new ByteArrayOutputStream();
+            byte[] buffer = BufferPool.acquire(1024);
+            byte[] decrypted = BufferPool.acquire(Pair.getDecryptChunkBuffBytes(buffer.length));
+            try {
+                mteHelper.startDecrypt(responsePairId);
+                int bytesRead;
+                while ((bytesRead = inputStream.read(buffer)) != -1) {
+                    int bytesDecrypted = mteHelper.decryptChunk(responsePairId,
+                            buffer,
+                            0,
+                            bytesRead,
+                            decrypted,
+                            0);
+                    responseBytes.write(decrypted, 0, bytesDecrypted);
+                }
+            } finally {
+                BufferPool.release(buffer);
+                BufferPool.release(decrypted);
             }
             DecodeResult finishEncryptResult = mteHelper.finishDecrypt(responsePairId);
             if (finishEncryptResult.decodedBytes != null &&
                     finishEncryptResult.decodedBytes.length > 0) {
-                sb.append(new String(finishEncryptResult.decodedBytes, charset));
+                responseBytes.write(finishEncryptResult.decodedBytes, 0, finishEncryptResult.decodedBytes.length);
             }
 //            try {
-                listener.onResponse(new JSONObject(sb.toString()), processedHeaders);
+                listener.onResponse(new JSONObject(responseBytes.toString("UTF-8")), processedHeaders);
                 callback.onCallback();
             } catch (JSONException | MteException e) {
                 throw new RelayException("RelayFileUploadHelper", "Unable to convert response to JSON. Exception: " + e);
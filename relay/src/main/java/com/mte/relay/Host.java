@@ -25,9 +25,11 @@
 package com.mte.relay;
 
 import android.content.Context;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.android.volley.AuthFailureError;
+import com.android.volley.BuildConfig;
 import com.android.volley.Request;
 
 import org.json.JSONArray;
@@ -40,22 +42,41 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 
 public class Host {
 
-    boolean hostPaired = false;
+    static final String REQUEST_QUEUE_FULL = "Relay request queue is full, request not sent.";
+
+    volatile boolean hostPaired = false;
     Context ctx;
     String hostUrl, hostUrlB64;
     private HostStorageHelper hostStorageHelper;
     private final MteHelper mteHelper;
     private final WebHelper webHelper;
     private final Object lock = new Object();
-    private int rePairAttempts = 1;
-    private String hostClientId;
+    private volatile int rePairAttempts = 1;
+    private volatile long pairingTimeMs = -1;
+    private volatile long keyGenerationTimeMs = -1;
+    private final AtomicBoolean resizingPool = new AtomicBoolean(false);
+    // The size this Host's pool should have. Follows resizes and autoscaling, so a full re-pair
+    // keeps the live size rather than going back to RelaySettings.pairPoolSize.
+    private volatile int targetPoolSize = RelaySettings.pairPoolSize;
+    private final PairPoolAutoscaler poolAutoscaler;
+    // Set when Pairs leave the pool, since the journal can only update Pairs in the snapshot.
+    private volatile boolean fullSnapshotNeeded = false;
+    private volatile String hostClientId;
+    private final HostStatePersister statePersister = new HostStatePersister(this::storeStates);
+    private final Object storeLock = new Object();
 
     public Host(Context ctx, String hostUrl, InstantiateHostCallback callback) {
         this.ctx = ctx;
@@ -63,7 +84,8 @@ public class Host {
         this.hostUrlB64 = Base64.getUrlEncoder().encodeToString(hostUrl.getBytes());
         webHelper = WebHelper.getInstance(ctx);
         mteHelper = new MteHelper();
-        Thread storageThread = new Thread(() -> {
+        poolAutoscaler = new PairPoolAutoscaler(this, mteHelper);
+        RelayExecutors.control().execute(() -> {
             try {
                 synchronized (lock) {
                     hostStorageHelper = new HostStorageHelper(ctx, hostUrlB64, new HostStorageHelperCallback() {
@@ -85,7 +107,7 @@ public class Host {
                         }
 
                         @Override
-                        public void foundStoredPairs(String storedHostsStr) {
+                        public void foundStoredPairs(StoredHostState storedHost) {
                             getStoredStates(callback);
                         }
                     });
@@ -94,11 +116,10 @@ public class Host {
                 callback.onError(e.getMessage());
             }
         });
-        storageThread.start();
     }
 
     private void pairWithHost(InstantiateHostCallback callback) {
-        Thread pairingThread = new Thread(() -> {
+        RelayExecutors.control().execute(() -> {
             synchronized (lock) {
                 while (hostStorageHelper == null) {
                     try {
@@ -110,44 +131,92 @@ public class Host {
                 checkForRelayServer(callback);
             }
         });
-        pairingThread.start();
     }
 
     private void getStoredStates(InstantiateHostCallback callback) {
-        JSONObject storedPairs;
-        try {
-            storedPairs = new JSONObject(hostStorageHelper.getStoredPairsForHost(hostUrlB64));
-            hostClientId = storedPairs.getString("clientId");
-            boolean paired = mteHelper.refillPairMap(storedPairs.getString("pairMapStates"));
-            if (paired) {
-                notifyPaired();
-                callback.hostInstantiated(hostUrl, Host.this);
-            }
-        } catch (JSONException e) {
-            callback.onError(e.getMessage());
+        StoredHostState storedHost = hostStorageHelper.getStoredPairsForHost(hostUrlB64);
+        hostClientId = storedHost.clientId;
+        boolean paired = mteHelper.refillPairMap(storedHost.pairStates);
+        if (paired) {
+            targetPoolSize = mteHelper.getPoolSize();
+            notifyPaired();
+            callback.hostInstantiated(hostUrl, Host.this);
         }
     }
 
     public <T> void sendRequest(Request<T> req, String[] headersToEncrypt, String pathnamePrefix, RelayDataTaskListener listener) {
-        Thread sendingTread = new Thread(() -> {
-            try {
-                sendUpdatedRequest(req, headersToEncrypt, pathnamePrefix, listener);
-            } catch (InterruptedException | UnsupportedEncodingException e) {
-                listener.onError(e.getMessage(), null);
-            }
-        });
-        sendingTread.start();
+        sendRequest(req, headersToEncrypt, pathnamePrefix, listener, new RelayCall());
+    }
+
+    <T> void sendRequest(Request<T> req, String[] headersToEncrypt, String pathnamePrefix, RelayDataTaskListener listener, RelayCall call) {
+        submitRequest(() -> leaseAndSend(req, headersToEncrypt, pathnamePrefix, listener, call), listener);
+    }
+
+    // Queue a group of requests together: either all of them go onto the request pool or, when
+    // its queue has no room for the whole group, none do and every listener gets the queue full
+    // error. Only a single request queued by another caller at the same moment can still split
+    // the group, then the requests after it fail with the same error.
+    void sendRequests(List<? extends Request<?>> reqs,
+                      String[] headersToEncrypt,
+                      String pathnamePrefix,
+                      List<? extends RelayDataTaskListener> listeners,
+                      List<RelayCall> calls) {
+        List<Runnable> tasks = new ArrayList<>(reqs.size());
+        for (int i = 0; i < reqs.size(); i++) {
+            Request<?> req = reqs.get(i);
+            RelayDataTaskListener listener = listeners.get(i);
+            RelayCall call = calls.get(i);
+            tasks.add(() -> leaseAndSend(req, headersToEncrypt, pathnamePrefix, listener, call));
+        }
+        int queued = RelayExecutors.executeAllRequests(tasks);
+        for (int i = queued; i < tasks.size(); i++) {
+            listeners.get(i).onError(REQUEST_QUEUE_FULL, null);
+        }
     }
 
     public <T> void reSendRequest(Request<T> req, String[] headersToEncrypt, String pathnamePrefix, RelayDataTaskListener listener) {
-        Thread sendingTread = new Thread(() -> {
-            try {
-                sendUpdatedRequest(req, headersToEncrypt, pathnamePrefix, listener);
-            } catch (InterruptedException | UnsupportedEncodingException e) {
-                listener.onError(e.getMessage(), null);
+        reSendRequest(req, headersToEncrypt, pathnamePrefix, listener, new RelayCall());
+    }
+
+    <T> void reSendRequest(Request<T> req, String[] headersToEncrypt, String pathnamePrefix, RelayDataTaskListener listener, RelayCall call) {
+        submitRequest(() -> leaseAndSend(req, headersToEncrypt, pathnamePrefix, listener, call), listener);
+    }
+
+    // Run relay work on the shared request pool. When its queue is full the request is
+    // refused rather than adding another thread.
+    private void submitRequest(Runnable task, RelayDataTaskListener listener) {
+        try {
+            RelayExecutors.request().execute(task);
+        } catch (RejectedExecutionException e) {
+            listener.onError(REQUEST_QUEUE_FULL, null);
+        }
+    }
+
+    private <T> void leaseAndSend(Request<T> req, String[] headersToEncrypt, String pathnamePrefix, RelayDataTaskListener listener, RelayCall call) {
+        if (call.isCancelled()) {
+            return;
+        }
+        try {
+            waitForPairing();
+            String pairId = mteHelper.leasePair().pairId;
+            if (!call.setLease(() -> mteHelper.returnPair(pairId))) {
+                return;
             }
-        });
-        sendingTread.start();
+            sendUpdatedRequest(pairId, req, headersToEncrypt, pathnamePrefix, listener, call);
+        } catch (InterruptedException | UnsupportedEncodingException e) {
+            call.releaseLease();
+            listener.onError(e.getMessage(), null);
+        } catch (RuntimeException e) {
+            // Nothing was sent, so no response will hand the Pair back.
+            call.releaseLease();
+            throw e;
+        }
+    }
+
+    synchronized private void waitForPairing() throws InterruptedException {
+        while (!hostPaired) {
+            wait();
+        }
     }
 
     RelayOptions setRelayOptions(boolean bodyIsEncoded, String pairId) {
@@ -161,7 +230,7 @@ public class Host {
                 bodyIsEncoded);
     }
 
-    synchronized private void checkForRelayServer(InstantiateHostCallback callback) {
+    private void checkForRelayServer(InstantiateHostCallback callback) {
         RelayConnectionModel connectionModel = new RelayConnectionModel(
                 hostUrl,
                 Request.Method.HEAD,
@@ -183,7 +252,8 @@ public class Host {
             @Override
             public void onJsonResponse(JSONObject response, RelayHeaders relayHeaders) {
                 hostClientId = relayHeaders.clientId;
-                makePairingCall(hostUrl, callback);
+                // Key generation is too heavy for the Volley delivery thread.
+                RelayExecutors.control().execute(() -> makePairingCall(hostUrl, callback));
             }
 
             @Override
@@ -198,8 +268,33 @@ public class Host {
         });
     }
 
-    synchronized private void makePairingCall(String hostUrl, InstantiateHostCallback callback) {
-        Map<String, Pair> pairMap = mteHelper.createPairMap(RelaySettings.pairPoolSize);
+    private void makePairingCall(String hostUrl, InstantiateHostCallback callback) {
+        long pairingStarted = SystemClock.elapsedRealtime();
+        // The Pairs only go into the pool once the server answered and they are instantiated,
+        // so nobody can lease a Pair without an encoder, and a failed pairing leaves none behind.
+        Map<String, Pair> pairMap = mteHelper.createPairs(getPairingPoolSize());
+        keyGenerationTimeMs = SystemClock.elapsedRealtime() - pairingStarted;
+        postPairs(pairMap, callback, respondedPairs -> {
+            if (respondedPairs.isEmpty()) {
+                callback.onError("Relay Server " + hostUrl + " accepted no Pairs.");
+                return;
+            }
+            mteHelper.replacePairs(respondedPairs);
+            pairingTimeMs = SystemClock.elapsedRealtime() - pairingStarted;
+            if (BuildConfig.DEBUG) {
+                Log.d("MTE", "Paired " + respondedPairs.size() + " pairs with " + hostUrl + " in "
+                        + pairingTimeMs + "ms, key generation " + keyGenerationTimeMs + "ms");
+            }
+            notifyPaired();
+            callback.hostInstantiated(hostUrl, Host.this);
+        });
+    }
+
+    // Send the public keys of new Pairs to /api/mte-pair. Once the response has been used to
+    // instantiate them, onPaired gets the Pairs the server accepted.
+    private void postPairs(Map<String, Pair> pairMap,
+                           InstantiateHostCallback callback,
+                           Consumer<List<Pair>> onPaired) {
         JSONArray pairMapArray = new JSONArray();
         pairMap.forEach((pairId, pair) -> {
             JSONObject pairJson = new JSONObject();
@@ -244,61 +339,335 @@ public class Host {
             @Override
             public void onJsonArrayResponse(JSONArray response, RelayHeaders relayHeaders) {
                 hostClientId = relayHeaders.clientId;
+                RelayExecutors.control().execute(() ->
+                        completePairing(response, pairMap, callback, onPaired));
+            }
 
-                boolean pairingComplete = true;
-                String errorMessage = "";
-                for (int i = 0; i < response.length(); i++) {
-                    JSONObject pair;
-                    String pairId;
-                    try {
-                        pair = response.getJSONObject(i);
-                        pairId = pair.getString("pairId");
-                        Pair currentPair = pairMap.get(pairId);
-                        if (currentPair == null) {
-                            callback.onError("Response Pair not found in pairMap");
-                            return;
+            @Override
+            public void onByteArrayResponse(byte[] byteArrayResponse, RelayHeaders relayHeaders) {
+                callback.onError("Unexpected Volley jsonArrayResponse. Response: " + byteArrayResponse.toString());
+            }
+        });
+    }
+
+    private void completePairing(JSONArray response,
+                                 Map<String, Pair> pairMap,
+                                 InstantiateHostCallback callback,
+                                 Consumer<List<Pair>> onPaired) {
+        List<Pair> respondedPairs = new ArrayList<>(response.length());
+        for (int i = 0; i < response.length(); i++) {
+            JSONObject pair;
+            String pairId;
+            try {
+                pair = response.getJSONObject(i);
+                pairId = pair.getString("pairId");
+                Pair currentPair = pairMap.get(pairId);
+                if (currentPair == null) {
+                    callback.onError("Response Pair not found in pairMap");
+                    return;
+                }
+                currentPair.encResponderEncryptedSecret = convertB64ToBytes(pair.getString("decoderSecret"));
+                currentPair.encNonce = Long.parseLong(pair.getString("decoderNonce"));
+                currentPair.decResponderEncryptedSecret = convertB64ToBytes(pair.getString("encoderSecret"));
+                currentPair.decNonce = Long.parseLong(pair.getString("encoderNonce"));
+                respondedPairs.add(currentPair);
+            } catch (JSONException e) {
+                callback.onError(e.getMessage());
+                return;
+            }
+        }
+        try {
+            mteHelper.instantiatePairs(respondedPairs);
+        } catch (MteException | KyberException e) {
+            callback.onError(e.getMessage());
+            return;
+        }
+        onPaired.accept(respondedPairs);
+    }
+
+    // Grow or shrink the live pool. Pairs already in the pool keep serving traffic: growing
+    // pairs only the new Pairs, shrinking retires Pairs that are not leased.
+    void resizePool(int targetSize, InstantiateHostCallback callback) {
+        if (!hostPaired) {
+            callback.onError("Unable to resize the pair pool, " + hostUrl + " is not paired.");
+            return;
+        }
+        if (!resizingPool.compareAndSet(false, true)) {
+            callback.onError("A pair pool resize is already in progress for " + hostUrl);
+            return;
+        }
+        int poolSize = mteHelper.getPoolSize();
+        if (targetSize > poolSize) {
+            RelayExecutors.control().execute(() -> addPairs(targetSize - poolSize, callback));
+            return;
+        }
+        if (targetSize < poolSize && mteHelper.retireIdlePairs(poolSize - targetSize) > 0) {
+            // The stored snapshot still lists the retired Pairs.
+            fullSnapshotNeeded = true;
+            statePersister.markDirty();
+        }
+        targetPoolSize = mteHelper.getPoolSize();
+        resizingPool.set(false);
+        callback.hostInstantiated(hostUrl, this);
+    }
+
+    void setAutoscalePool(boolean autoscale) {
+        if (autoscale) {
+            poolAutoscaler.start();
+        } else {
+            poolAutoscaler.stop();
+        }
+    }
+
+    int getPoolSize() {
+        return mteHelper.getPoolSize();
+    }
+
+    // Applies from the next full pairing, see Relay.setPairPoolSize().
+    void setTargetPoolSize(int poolSize) {
+        targetPoolSize = poolSize;
+    }
+
+    private int getPairingPoolSize() {
+        int poolSize = Math.max(1, targetPoolSize);
+        if (RelaySettings.autoscalePairPool) {
+            poolSize = Math.max(RelaySettings.pairPoolMinSize, Math.min(RelaySettings.pairPoolMaxSize, poolSize));
+        }
+        return poolSize;
+    }
+
+    private void addPairs(int count, InstantiateHostCallback callback) {
+        InstantiateHostCallback resizeCallback = new InstantiateHostCallback() {
+            @Override
+            public void onError(String message) {
+                resizingPool.set(false);
+                callback.onError(message);
+            }
+
+            @Override
+            public void hostInstantiated(String hostUrl, Host host) {
+                resizingPool.set(false);
+                callback.hostInstantiated(hostUrl, host);
+            }
+        };
+        int poolGeneration = mteHelper.getPoolGeneration();
+        Map<String, Pair> pairMap;
+        try {
+            pairMap = mteHelper.createPairs(count);
+        } catch (KyberException e) {
+            resizeCallback.onError(e.getMessage());
+            return;
+        }
+        postPairs(pairMap, resizeCallback, respondedPairs -> {
+            if (!mteHelper.addPairs(respondedPairs, poolGeneration)) {
+                resizeCallback.onError("The pair pool for " + hostUrl + " was replaced while adding Pairs.");
+                return;
+            }
+            // New Pairs are not in the stored snapshot yet, so this writes a full one.
+            statePersister.markDirty();
+            targetPoolSize = mteHelper.getPoolSize();
+            resizeCallback.hostInstantiated(hostUrl, Host.this);
+        });
+    }
+
+    // Upload reqProperties.file in parts across several Pairs, see MultipartUploadHelper.
+    void uploadFileMultipart(RelayFileRequestProperties reqProperties,
+                             String route,
+                             String pathnamePrefix,
+                             RelayDataTaskListener listener,
+                             RelayStreamCompletionCallback completionCallback,
+                             RelayCall call) {
+        if (reqProperties.file == null) {
+            listener.onError("A multipart upload needs RelayFileRequestProperties.file.", null);
+            return;
+        }
+        submitRequest(() -> {
+            if (call.isCancelled()) {
+                return;
+            }
+            MultipartUploadHelper upload = new MultipartUploadHelper(new MultipartUploadHelper.PartUploader() {
+                @Override
+                public byte[] markEncoderState(String pairId) throws MteException {
+                    return mteHelper.markEncoderState(pairId);
+                }
+
+                @Override
+                public void rewindEncoderState(String pairId, byte[] state) throws MteException {
+                    mteHelper.rewindEncoderState(pairId, state);
+                }
+
+                @Override
+                public MultipartUploadHelper.PartResult uploadPart(String pairId,
+                                                                   Map<String, String> partHeaders,
+                                                                   long offset,
+                                                                   long length,
+                                                                   RelayStreamCompletionCallback progress) {
+                    return Host.this.uploadPart(pairId, reqProperties, route, pathnamePrefix,
+                            partHeaders, offset, length, progress, call);
+                }
+
+                @Override
+                public void rejectPair(int status, String pairId) {
+                    // The part fails the upload, nothing waits for the replacement Pair.
+                    InstantiateHostCallback ignored = new InstantiateHostCallback() {
+                        @Override
+                        public void onError(String message) {
                         }
-                        currentPair.encResponderEncryptedSecret = convertB64ToBytes(pair.getString("decoderSecret"));
-                        currentPair.encNonce = Long.parseLong(pair.getString("decoderNonce"));
-                        currentPair.decResponderEncryptedSecret = convertB64ToBytes(pair.getString("encoderSecret"));
-                        currentPair.decNonce = Long.parseLong(pair.getString("encoderNonce"));
-                        pairMap.get(pairId).createEncoderAndDecoder();
-                    } catch (JSONException | MteException e) {;
-                        callback.onError(e.getMessage());
-                        return;
+
+                        @Override
+                        public void hostInstantiated(String hostUrl, Host host) {
+                        }
+                    };
+                    if (isRePairStatus(status)) {
+                        rePairCheck(status, pairId, ignored);
+                    } else {
+                        replacePair(pairId, ignored);
                     }
                 }
-                try {
-                    notifyPaired();
-                    callback.hostInstantiated(hostUrl, Host.this);
-                    return;
-                } catch (JSONException e) {
-                    errorMessage = "Error: " + e.getMessage();
+            }, reqProperties, route, completionCallback, call);
+            List<String> pairIds = new ArrayList<>();
+            String error;
+            try {
+                waitForPairing();
+                // Wait for one Pair and take whichever others are free now. Waiting for more
+                // while holding one could deadlock with another upload doing the same.
+                pairIds.add(mteHelper.leasePair().pairId);
+                Pair pair;
+                while (pairIds.size() < upload.getMaxParallelism()
+                        && (pair = mteHelper.leasePairIfFree()) != null) {
+                    pairIds.add(pair.pairId);
+                }
+                error = upload.uploadParts(pairIds);
+            } catch (InterruptedException e) {
+                error = getClass().getSimpleName() + " Exception. Error: " + e.getMessage();
+            } finally {
+                for (String pairId : pairIds) {
+                    mteHelper.returnPair(pairId);
                 }
-                callback.onError(errorMessage);
             }
+            if (error != null) {
+                listener.onError(error, null);
+                return;
+            }
+            try {
+                // The manifest is an ordinary request, it leases a Pair of its own.
+                sendRequest(upload.createManifestRequest(),
+                        upload.getManifestHeadersToEncrypt(),
+                        pathnamePrefix,
+                        listener,
+                        call);
+            } catch (JSONException e) {
+                listener.onError("Error: " + e.getMessage(), null);
+            }
+        }, listener);
+    }
 
+    // Send one part of a multipart upload on a Pair the caller has leased. Its connection is
+    // registered with the call while it is open, so cancelling the upload aborts every part.
+    MultipartUploadHelper.PartResult uploadPart(String pairId,
+                                                RelayFileRequestProperties reqProperties,
+                                                String route,
+                                                String pathnamePrefix,
+                                                Map<String, String> partHeaders,
+                                                long offset,
+                                                long length,
+                                                RelayStreamCompletionCallback progress,
+                                                RelayCall call) {
+        String[] error = new String[1];
+        RelayDataTaskListener partListener = new RelayDataTaskListener() {
             @Override
-            public void onByteArrayResponse(byte[] byteArrayResponse, RelayHeaders relayHeaders) {
-                callback.onError("Unexpected Volley jsonArrayResponse. Response: " + byteArrayResponse.toString());
+            public void onError(String message, Map<String, List<String>> responseHeaders) {
+                error[0] = message;
             }
-        });
+
+            @Override
+            public void onResponse(byte[] responseBytes, Map<String, List<String>> responseHeaders) {
+            }
+
+            @Override
+            public void onResponse(JSONObject responseJson, Map<String, List<String>> responseHeaders) {
+            }
+        };
+        Map<String, String> headers = reqProperties.origHeaders != null
+                ? new HashMap<>(reqProperties.origHeaders)
+                : new HashMap<>();
+        headers.putAll(partHeaders);
+        headers.put("Content-Length", String.valueOf(length));
+        List<String> headersToEncrypt = new ArrayList<>();
+        if (reqProperties.headersToEncrypt != null) {
+            headersToEncrypt.addAll(Arrays.asList(reqProperties.headersToEncrypt));
+        }
+        headersToEncrypt.addAll(partHeaders.keySet());
+        FileUploadHelper fileUploadHelper = null;
+        try {
+            RelayFileUploadProperties properties = new RelayFileUploadProperties(
+                    reqProperties.serverPath,
+                    route,
+                    reqProperties.file,
+                    mteHelper,
+                    headersToEncrypt.toArray(new String[0]),
+                    headers,
+                    setRelayOptions(true, pairId),
+                    null);
+            properties.partOffset = offset;
+            properties.partLength = length;
+
+            EncodeResult encryptRouteResult = encryptRoute(pairId, route, pathnamePrefix);
+            properties.route = encryptRouteResult.encodedStr;
+            properties.relayOptions.pairId = encryptRouteResult.pairId;
+
+            fileUploadHelper = new FileUploadHelper(properties, partListener, progress);
+            call.addPartConnection(fileUploadHelper.getConnection());
+            try {
+                fileUploadHelper.encryptAndSend(() -> {
+                    conditionallyStoreStates();
+                });
+            } finally {
+                call.removePartConnection(fileUploadHelper.getConnection());
+                // The Pair stays with the upload for its next part, don't leave a failed part's
+                // sessions open on it.
+                mteHelper.abortChunkSessions(pairId);
+            }
+            if (error[0] != null) {
+                return new MultipartUploadHelper.PartResult(fileUploadHelper.getResponseStatus(), error[0]);
+            }
+        } catch (IOException | RuntimeException e) {
+            // The server may have answered before the response failed to process.
+            return new MultipartUploadHelper.PartResult(
+                    fileUploadHelper != null ? fileUploadHelper.getResponseStatus() : 0,
+                    getClass().getSimpleName() + " Exception. Error: " + e.getMessage());
+        }
+        return MultipartUploadHelper.PartResult.OK;
     }
 
-    synchronized private void notifyPaired() throws JSONException {
-        hostPaired = true;
-        conditionallyStoreStates();
-        notify();
+    // Time the last pairing took, from key generation until the Pairs were ready, or -1.
+    long getPairingTimeMs() {
+        return pairingTimeMs;
     }
 
-    synchronized private void sendUpdatedRequest(Request origRequest,
-                                                 String[] headersToEncrypt,
-                                                 String pathnamePrefix,
-                                                 RelayDataTaskListener listener) throws InterruptedException, UnsupportedEncodingException {
-        while (!hostPaired) {
-            wait();
+    long getKeyGenerationTimeMs() {
+        return keyGenerationTimeMs;
+    }
+
+    synchronized private void notifyPaired() {
+        hostPaired = true;
+        conditionallyStoreStates();
+        // Store the freshly paired states right away rather than waiting for the next flush.
+        statePersister.flush();
+        notifyAll();
+        if (RelaySettings.autoscalePairPool) {
+            poolAutoscaler.start();
         }
+    }
 
+    // Not synchronized: the leased Pair is this request's alone and guards its own encoder, so
+    // requests on different Pairs encode in parallel. The Host monitor only covers pairing.
+    private void sendUpdatedRequest(String pairId,
+                                    Request origRequest,
+                                    String[] headersToEncrypt,
+                                    String pathnamePrefix,
+                                    RelayDataTaskListener listener,
+                                    RelayCall call) throws UnsupportedEncodingException {
         // Get the original route to put in the new route
         String origRoute = null;
         String origUrlStr = origRequest.getUrl();
@@ -310,7 +679,7 @@ public class Host {
         }
 
         // Encrypt the route and inject the pathnamePrefix if it exists
-        EncodeResult encryptedRouteResult = encryptRoute(origRoute, pathnamePrefix);
+        EncodeResult encryptedRouteResult = encryptRoute(pairId, origRoute, pathnamePrefix);
         EncodeResult encryptHeadersResult = encryptHeaders(encryptedRouteResult.pairId, origRequest, headersToEncrypt, listener);
         EncodeResult encryptBodyBytesResult = encryptBodyBytes(encryptHeadersResult.pairId, origRequest, listener);
         byte[] encryptedBodyBytes = encryptBodyBytesResult.encodedBytes != null ? encryptBodyBytesResult.encodedBytes : null;
@@ -330,103 +699,202 @@ public class Host {
                         null),
                 setRelayOptions(encryptedBodyBytes != null,
                         encryptedRouteResult.pairId));
-        webHelper.sendBytes(relayConnectionModel, origRequest, new RWHResponseListener() {
+        Request<byte[]> relayRequest = webHelper.sendBytes(relayConnectionModel, origRequest, new RWHResponseListener() {
             @Override
             public void onError(int code, byte[] data, RelayHeaders relayHeaders) {
-                rePairCheck(code, new InstantiateHostCallback() {
-                    @Override
-                    public void onError(String message) {
-                        listener.onError(message, null);
-                    }
-
-                    @Override
-                    public void hostInstantiated(String hostUrl, Host host) {
-                        reSendRequest(origRequest, headersToEncrypt, pathnamePrefix, listener);
-                    }
-                });
+                if (!call.startDelivery()) {
+                    return;
+                }
                 Map<String, List<String>> responseHeaders = null;
                 String responseString = "Status Code: " + code + " ";
+                // Hold on to the Pair until a rejected one is quarantined, otherwise another
+                // request could lease it in between and lose it mid-request.
+                Runnable releaseLease = call.takeLease();
                 try {
-                    responseHeaders = NetworkHeaderHelper.processVolleyResponseHeaders(relayHeaders, mteHelper);
-                    DecodeResult bodyDecodeResult;
-                    if (data != null &&
-                            data.length != 0 &&
-                            data.length != mteHelper.getEncryptFinishBytes()) {
-                        bodyDecodeResult = mteHelper.decode(relayHeaders.pairId, data);
-                        if (bodyDecodeResult.decodedBytes != null) {
-                            responseString = responseString + new String(bodyDecodeResult.decodedBytes, StandardCharsets.UTF_8);
-                        }
-                        try {
+                    try {
+                        responseHeaders = NetworkHeaderHelper.processVolleyResponseHeaders(relayHeaders, mteHelper);
+                        DecodeResult bodyDecodeResult;
+                        if (data != null &&
+                                data.length != 0 &&
+                                data.length != mteHelper.getEncryptFinishBytes()) {
+                            bodyDecodeResult = mteHelper.decode(relayHeaders.pairId, data);
+                            if (bodyDecodeResult.decodedBytes != null) {
+                                responseString = responseString + new String(bodyDecodeResult.decodedBytes, StandardCharsets.UTF_8);
+                            }
                             conditionallyStoreStates();
-                        } catch (JSONException e) {
-                            responseString = responseString + e.getMessage();
                         }
+                    } catch (IOException | MteException e) {
+                        responseString = responseString + e.getMessage();
                     }
-                } catch (IOException | MteException e) {
-                    responseString = responseString + e.getMessage();
+                    // The server names the Pair it rejected, otherwise it is the one this request used.
+                    String rejectedPairId = relayHeaders != null && relayHeaders.pairId != null
+                            ? relayHeaders.pairId
+                            : encryptedRouteResult.pairId;
+                    rePairCheck(code, rejectedPairId, new InstantiateHostCallback() {
+                        @Override
+                        public void onError(String message) {
+                            listener.onError(message, null);
+                        }
+
+                        @Override
+                        public void hostInstantiated(String hostUrl, Host host) {
+                            reSendRequest(origRequest, headersToEncrypt, pathnamePrefix, listener, call);
+                        }
+                    });
+                } finally {
+                    releaseLease.run();
                 }
                 listener.onError(responseString, responseHeaders);
             }
 
             @Override
             public void onJsonResponse(JSONObject jsonResponse, RelayHeaders relayHeaders) {
+                if (!call.startDelivery()) {
+                    return;
+                }
+                call.releaseLease();
                 listener.onError("Unexpected Volley jsonResponse. Response: " + jsonResponse.toString(), null);
             }
 
             @Override
             public void onJsonArrayResponse(JSONArray jsonArrayResponse, RelayHeaders relayHeaders) {
+                if (!call.startDelivery()) {
+                    return;
+                }
+                call.releaseLease();
                 listener.onError("Unexpected Volley jsonArrayResponse. Response: " + jsonArrayResponse.toString(), null);
             }
 
             @Override
             public void onByteArrayResponse(byte[] byteArrayResponse, RelayHeaders relayHeaders) {
+                if (!call.startDelivery()) {
+                    return;
+                }
                 Map<String, List<String>> responseHeaders = null;
+                DecodeResult bodyDecodeResult = null;
                 try {
-                    responseHeaders = NetworkHeaderHelper.processVolleyResponseHeaders(relayHeaders, mteHelper);
-                } catch (IOException | MteException e) {
-                    listener.onError(e.getMessage(), responseHeaders);
-                }
-                if (byteArrayResponse != null) {
-                    DecodeResult bodyDecodeResult = mteHelper.decode(relayHeaders.pairId, byteArrayResponse);
                     try {
-                        conditionallyStoreStates();
-                    } catch (JSONException e) {
-                        listener.onError(e.getMessage(), null);
+                        responseHeaders = NetworkHeaderHelper.processVolleyResponseHeaders(relayHeaders, mteHelper);
+                    } catch (IOException | MteException e) {
+                        listener.onError(e.getMessage(), responseHeaders);
                     }
+                    if (byteArrayResponse != null) {
+                        bodyDecodeResult = mteHelper.decode(relayHeaders.pairId, byteArrayResponse);
+                    }
+                } finally {
+                    // Every way out of a delivery hands the Pair back.
+                    call.releaseLease();
+                }
+                if (bodyDecodeResult != null) {
+                    conditionallyStoreStates();
                     rePairAttempts = 1;
                     listener.onResponse(bodyDecodeResult.decodedBytes, responseHeaders);
                 }
             }
         });
+        call.setRequest(relayRequest);
+    }
+
+    // The statuses the relay server answers with when it no longer knows a Pair.
+    static boolean isRePairStatus(int code) {
+        return 559 <= code && code <= 569;
     }
 
-    private void rePairCheck(int code, InstantiateHostCallback callback) {
-        if (559 <= code && code <= 569) {
-            if (rePairAttempts < RelaySettings.pairPoolSize) {
+    synchronized private void rePairCheck(int code, String pairId, InstantiateHostCallback callback) {
+        if (isRePairStatus(code)) {
+            if (rePairAttempts < Math.max(targetPoolSize, mteHelper.getPoolSize())) {
                 rePairAttempts ++;
-                rePairWithHost(callback);
+                // Replace just the rejected Pair when possible, the others keep serving traffic.
+                if (pairId != null && hostPaired && mteHelper.quarantinePair(pairId)) {
+                    fullSnapshotNeeded = true;
+                    statePersister.markDirty();
+                    RelayExecutors.control().execute(() -> rePairSinglePair(callback));
+                } else {
+                    rePairWithHost(callback);
+                }
             }
         }
     }
 
-    private void conditionallyStoreStates() throws JSONException {
-        JSONObject stateToStore = new JSONObject();
-        String pairMapStates = "";
-        stateToStore.put("clientId", hostClientId);
-        stateToStore.put("pairMapStates", pairMapStates);
+    // Replace a Pair whose state is out of step with the server's, e.g. after the server
+    // decoded a multipart part the client gave up on.
+    synchronized private void replacePair(String pairId, InstantiateHostCallback callback) {
+        if (hostPaired && mteHelper.quarantinePair(pairId)) {
+            fullSnapshotNeeded = true;
+            statePersister.markDirty();
+            RelayExecutors.control().execute(() -> rePairSinglePair(callback));
+        } else {
+            rePairWithHost(callback);
+        }
+    }
+
+    // Pair one Pair to replace a quarantined one.
+    private void rePairSinglePair(InstantiateHostCallback callback) {
+        int poolGeneration = mteHelper.getPoolGeneration();
+        Map<String, Pair> pairMap;
+        try {
+            pairMap = mteHelper.createPairs(1);
+        } catch (KyberException e) {
+            rePairWithHost(callback);
+            return;
+        }
+        postPairs(pairMap, new InstantiateHostCallback() {
+            @Override
+            public void onError(String message) {
+                // The server may no longer know this client, start over with a full pairing.
+                rePairWithHost(callback);
+            }
+
+            @Override
+            public void hostInstantiated(String hostUrl, Host host) {
+                callback.hostInstantiated(hostUrl, host);
+            }
+        }, respondedPairs -> {
+            // If a full re-pair replaced the pool meanwhile, the new Pair isn't needed and the
+            // resent request waits for that pairing instead.
+            if (mteHelper.addPairs(respondedPairs, poolGeneration)) {
+                statePersister.markDirty();
+            }
+            callback.hostInstantiated(hostUrl, Host.this);
+        });
+    }
 
-        // If we are persisting pairs, get the pair states and overwrite that element of the JSONObject.
-        if (RelaySettings.persistPairs) {
-            pairMapStates = mteHelper.getPairMapStates();
-            stateToStore.put("pairMapStates", pairMapStates);
+    // Mark the states as changed. HostStatePersister writes them later, coalescing bursts.
+    private void conditionallyStoreStates() {
+        statePersister.markDirty();
+    }
+
+    // Write any unsaved states now, e.g. when the app goes to the background.
+    void flushStates() {
+        statePersister.flush();
+    }
+
+    private void storeStates() {
+        synchronized (storeLock) {
+            List<StoredHostState.PairState> pairStates = Collections.emptyList();
+
+            // If we are persisting pairs, get the pair states.
+            // A Host that is re-pairing has no states worth keeping.
+            if (RelaySettings.persistPairs && hostPaired) {
+                // Usually only a few Pairs changed, journal just those.
+                if (!fullSnapshotNeeded) {
+                    List<StoredHostState.PairState> changedPairStates = mteHelper.getChangedPairStates();
+                    if (changedPairStates.isEmpty()
+                            || hostStorageHelper.appendPairStates(changedPairStates)) {
+                        return;
+                    }
+                }
+                fullSnapshotNeeded = false;
+                pairStates = mteHelper.getPairStates();
+            }
+            hostStorageHelper.saveHostToFile(new StoredHostState(hostClientId, pairStates));
         }
-        hostStorageHelper.saveHostToFile(stateToStore.toString());
     }
 
-    private EncodeResult encryptRoute(String route, String pathnamePrefix) throws UnsupportedEncodingException {
+    private EncodeResult encryptRoute(String pairId, String route, String pathnamePrefix) throws UnsupportedEncodingException {
         EncodeResult encryptedRouteResult = null;
         route = route.substring(1); // remove the preceding '/'
-        encryptedRouteResult = mteHelper.encode(null, route);
+        encryptedRouteResult = mteHelper.encode(pairId, route);
 
         // Inject the pathnamePrefix if it exists
         if (pathnamePrefix != null) {
@@ -472,21 +940,28 @@ public class Host {
         }
     }
 
-    synchronized public void uploadFile(RelayFileRequestProperties reqProperties,
-                                        String route,
-                                        String pathnamePrefix,
-                                        RelayDataTaskListener listener,
-                                        RelayStreamCompletionCallback completionCallback) {
-        while (!hostPaired) {
-            try {
-                wait();
-            } catch (InterruptedException e) {
-                listener.onError(e.getMessage(), null);
+    public void uploadFile(RelayFileRequestProperties reqProperties,
+                           String route,
+                           String pathnamePrefix,
+                           RelayDataTaskListener listener,
+                           RelayStreamCompletionCallback completionCallback) {
+        uploadFile(reqProperties, route, pathnamePrefix, listener, completionCallback, new RelayCall());
+    }
+
+    void uploadFile(RelayFileRequestProperties reqProperties,
+                    String route,
+                    String pathnamePrefix,
+                    RelayDataTaskListener listener,
+                    RelayStreamCompletionCallback completionCallback,
+                    RelayCall call) {
+        submitRequest(() -> {
+            if (call.isCancelled()) {
+                return;
             }
-        }
-        Thread sendingTread = new Thread(() -> {
+            String pairId = null;
             try {
-                String pairId = mteHelper.getNextPairId();
+                waitForPairing();
+                pairId = mteHelper.leasePair().pairId;
                 RelayFileUploadProperties properties = new RelayFileUploadProperties(
                         reqProperties.serverPath,
                         route,
@@ -498,35 +973,52 @@ public class Host {
                         reqProperties.relayStreamCallback);
 
                 // Encrypt route and inject pathnamePrefix if it exists
-                EncodeResult encryptRouteResult = encryptRoute(route, pathnamePrefix);
+                EncodeResult encryptRouteResult = encryptRoute(pairId, route, pathnamePrefix);
                 properties.route = encryptRouteResult.encodedStr;
                 properties.relayOptions.pairId = encryptRouteResult.pairId;
 
                 FileUploadHelper fileUploadHelper = new FileUploadHelper(properties, listener, completionCallback);
+                call.setConnection(fileUploadHelper.getConnection());
                 fileUploadHelper.encryptAndSend(() -> {
-                    try {
-                        conditionallyStoreStates();
-                    } catch (JSONException e) {
-                        listener.onError("Error: " + e.getMessage(), null);
-                    }
+                    conditionallyStoreStates();
                 });
-            } catch (IOException  | MteException e) {
+            } catch (IOException | MteException | InterruptedException e) {
                 listener.onError(getClass().getSimpleName() + " Exception. Error: " +e.getMessage(), null);
+            } finally {
+                // A failed or cancelled upload leaves its sessions unfinished.
+                mteHelper.abortChunkSessions(pairId);
+                mteHelper.returnPair(pairId);
             }
-        });
-        sendingTread.start();
+        }, listener);
     }
 
-    synchronized public void downloadFile(RelayFileRequestProperties reqProperties, String pathnamePrefix, RelayDataTaskListener listener) throws IOException {
-        while (!hostPaired) {
+    public void downloadFile(RelayFileRequestProperties reqProperties, String pathnamePrefix, RelayDataTaskListener listener) {
+        downloadFile(reqProperties, pathnamePrefix, listener, new RelayCall());
+    }
+
+    void downloadFile(RelayFileRequestProperties reqProperties, String pathnamePrefix, RelayDataTaskListener listener, RelayCall call) {
+        submitRequest(() -> {
+            if (call.isCancelled()) {
+                return;
+            }
             try {
-                wait();
-            } catch (InterruptedException e) {
+                leaseAndDownload(reqProperties, pathnamePrefix, listener, call);
+            } catch (IOException e) {
                 listener.onError(getClass().getSimpleName() + " Exception. Error: " +e.getMessage(), null);
             }
+        }, listener);
+    }
+
+    private void leaseAndDownload(RelayFileRequestProperties reqProperties, String pathnamePrefix, RelayDataTaskListener listener, RelayCall call) throws IOException {
+        // Lease a Pair to do this download. FileDownloadHelper hands it back when the download ends.
+        String pairId;
+        try {
+            waitForPairing();
+            pairId = mteHelper.leasePair().pairId;
+        } catch (InterruptedException e) {
+            listener.onError(getClass().getSimpleName() + " Exception. Error: " +e.getMessage(), null);
+            return;
         }
-        // Get PairId to do this download
-        String pairId = mteHelper.getNextPairId();
         FileDownloadProperties properties = new FileDownloadProperties(
                 reqProperties.serverPath,
                 reqProperties.route,
@@ -536,18 +1028,20 @@ public class Host {
                 reqProperties.origHeaders,
                 setRelayOptions(false, pairId));
 
-        // Encrypt route and inject pathnamePrefix if it exists
-        EncodeResult encryptRouteResult = encryptRoute(reqProperties.route, pathnamePrefix);
-        properties.route = encryptRouteResult.encodedStr;
-        properties.relayOptions.pairId = encryptRouteResult.pairId;
-
-        FileDownloadHelper connectionHelper = new FileDownloadHelper(properties, listener);
+        FileDownloadHelper connectionHelper;
+        try {
+            // Encrypt route and inject pathnamePrefix if it exists
+            EncodeResult encryptRouteResult = encryptRoute(pairId, reqProperties.route, pathnamePrefix);
+            properties.route = encryptRouteResult.encodedStr;
+            properties.relayOptions.pairId = encryptRouteResult.pairId;
+            connectionHelper = new FileDownloadHelper(properties, listener);
+            call.setConnection(connectionHelper.getConnection());
+        } catch (IOException | RuntimeException e) {
+            mteHelper.returnPair(pairId);
+            throw e;
+        }
         connectionHelper.downloadFile(() -> {
-            try {
-                conditionallyStoreStates();
-            } catch (JSONException e) {
-                listener.onError("Error: " + e.getMessage(), null);
-            }
+            conditionallyStoreStates();
         });
     }
 
@@ -558,33 +1052,23 @@ public class Host {
                                  String pathnamePrefix,
                                  RelayDataTaskListener listener,
                                  RelayStreamCompletionCallback completionCallback) {
-        Thread sendingTread = new Thread(() -> {
-            uploadFile(reqProperties, route, pathnamePrefix, listener, completionCallback);
-        });
-        sendingTread.start();
+        uploadFile(reqProperties, route, pathnamePrefix, listener, completionCallback);
     }
 
     private void retryDownloadFile(RelayFileRequestProperties reqProperties, String pathnamePrefix, RelayDataTaskListener listener) {
-        Thread sendingTread = new Thread(() -> {
-            try {
-                downloadFile(reqProperties, pathnamePrefix, listener);
-            } catch (IOException e) {
-                listener.onError("Error: " + e.getMessage(), null);
-            }
-        });
-        sendingTread.start();
+        downloadFile(reqProperties, pathnamePrefix, listener);
     }
 
     public void rePairWithHost(InstantiateHostCallback callback) {
         try {
-            hostStorageHelper.removeStoredHost();
-            hostPaired = false;
-            if (mteHelper.pairMap != null) {
-                mteHelper.pairMap.clear();
-            }
-            Thread pairingTread = new Thread(() -> checkForRelayServer(callback));
-            pairingTread.start();
-        } catch (JSONException e) {
+            statePersister.discard();
+            synchronized (storeLock) {
+                hostPaired = false;
+                mteHelper.clearPairMap();
+                hostStorageHelper.removeStoredHost();
+            }
+            RelayExecutors.control().execute(() -> checkForRelayServer(callback));
+        } catch (RelayException e) {
             callback.onError(e.getMessage());
         }
     }
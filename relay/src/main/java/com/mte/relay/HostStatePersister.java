@@ -0,0 +1,117 @@
+// The MIT License (MIT)
+//
+// Copyright (c) Eclypses, Inc.
+//
+// All rights reserved.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+package com.mte.relay;
+
+import android.util.Log;
+
+import com.android.volley.BuildConfig;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+// Write-behind persistence of a Host's pair states. Callers mark the states dirty after every
+// state change; the write runs on a background thread once no change has arrived for
+// RelaySettings.stateFlushDelayMs, or at the latest RelaySettings.stateFlushMaxDelayMs after
+// the first unsaved change. A burst of requests therefore costs one write.
+class HostStatePersister {
+
+    private final Runnable storeStates;
+    private ScheduledFuture<?> scheduledFlush;
+    private boolean dirty = false;
+    private long firstDirtyAt;
+    private long lastDirtyAt;
+
+    HostStatePersister(Runnable storeStates) {
+        this.storeStates = storeStates;
+    }
+
+    synchronized void markDirty() {
+        long now = System.currentTimeMillis();
+        if (!dirty) {
+            dirty = true;
+            firstDirtyAt = now;
+        }
+        lastDirtyAt = now;
+        if (scheduledFlush == null) {
+            scheduleFlush(RelaySettings.stateFlushDelayMs);
+        }
+    }
+
+    // Write any unsaved states now, on the calling thread.
+    void flush() {
+        synchronized (this) {
+            if (!dirty) {
+                return;
+            }
+            dirty = false;
+            cancelScheduledFlush();
+        }
+        storeStates.run();
+    }
+
+    // Forget unsaved states, used when the stored states are about to be discarded anyway.
+    synchronized void discard() {
+        dirty = false;
+        cancelScheduledFlush();
+    }
+
+    private void scheduleFlush(long delayMs) {
+        scheduledFlush = RelayExecutors.scheduler().schedule(this::onScheduledFlush, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void cancelScheduledFlush() {
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+    }
+
+    private void onScheduledFlush() {
+        synchronized (this) {
+            scheduledFlush = null;
+            if (!dirty) {
+                return;
+            }
+            // Keep waiting while changes are still arriving, up to the max delay.
+            long now = System.currentTimeMillis();
+            long quietAt = lastDirtyAt + RelaySettings.stateFlushDelayMs;
+            long deadline = firstDirtyAt + RelaySettings.stateFlushMaxDelayMs;
+            if (now < quietAt && now < deadline) {
+                scheduleFlush(Math.min(quietAt, deadline) - now);
+                return;
+            }
+        }
+        // The write itself is too slow for the shared timer thread.
+        RelayExecutors.control().execute(() -> {
+            try {
+                flush();
+            } catch (RuntimeException e) {
+                if (BuildConfig.DEBUG) {
+                    Log.e("MTE", "Unable to store pair states. Error: " + e.getMessage());
+                }
+            }
+        });
+    }
+}
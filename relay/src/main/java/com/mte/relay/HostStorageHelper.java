@@ -29,52 +29,82 @@
 
     import com.android.volley.BuildConfig;
 
-    import org.json.JSONException;
-    import org.json.JSONObject;
-
     import java.io.File;
-    import java.io.FileInputStream;
     import java.io.FileOutputStream;
+    import java.io.FilterOutputStream;
     import java.io.IOException;
+    import java.io.OutputStream;
+    import java.nio.ByteBuffer;
+    import java.nio.file.Files;
+    import java.nio.file.StandardCopyOption;
     import java.security.KeyStoreException;
     import java.security.NoSuchAlgorithmException;
+    import java.util.Arrays;
+    import java.util.Collections;
     import java.util.HashMap;
+    import java.util.HashSet;
+    import java.util.List;
     import java.util.Map;
-    import java.util.Objects;
+    import java.util.Set;
+    import java.util.zip.CRC32;
+    import java.util.zip.CheckedOutputStream;
 
     import javax.crypto.SecretKey;
 
     public class HostStorageHelper {
 
+        private static final byte[] HOST_FILE_MAGIC = {'M', 'T', 'R', 'F'};
+        private static final String TEMP_SUFFIX = ".tmp";
+        private static final String BACKUP_SUFFIX = ".bak";
+
         Context ctx;
         SecretKey secretKey;
         String  host, encryptedHostFilename;
         boolean foundStoredHost = false;
-        Map<String, String> storedHosts = new HashMap<>(1);
+        Map<String, StoredHostState> storedHosts = new HashMap<>(1);
         boolean storageInstantiated = false;
         KeyHelper keyHelper;
+        PairStateJournal pairStateJournal;
+        // Generation of the last full snapshot written or read, and the Pairs it holds.
+        // Journal records can only update those Pairs.
+        long generation = 0;
+        Set<String> storedPairIds = new HashSet<>();
 
         public HostStorageHelper(Context ctx, String host, HostStorageHelperCallback callback) throws IOException {
             this.ctx = ctx;
             this.host = host;
             this.encryptedHostFilename = host + "-encryptedHostFile";
-            Thread instantiateStorage = new Thread(this::instantiateKeyHelper);
-            instantiateStorage.start();
-
-            Thread loadStoredPairsThread = new Thread(() -> {
+            // Set up the key before loading in the same task, so no pool thread sits waiting for it.
+            RelayExecutors.control().execute(() -> {
                 try {
+                    instantiateKeyHelper();
                     loadStoredHosts(callback);
                 } catch (InterruptedException e) {
                     throw new RelayException(getClass().getSimpleName(),
                             "Load Stored Host Exception: Error: " + e.getMessage());
+                } catch (RelayException e) {
+                    callback.onError(e.getMessage());
                 }
             });
-            loadStoredPairsThread.start();
+        }
+
+        // Use keyHelper as it is, without the keystore check or loading a stored host, e.g. in
+        // tests on the JVM.
+        HostStorageHelper(Context ctx, String host, KeyHelper keyHelper) {
+            this.ctx = ctx;
+            this.host = host;
+            this.encryptedHostFilename = host + "-encryptedHostFile";
+            this.keyHelper = keyHelper;
+            this.pairStateJournal = new PairStateJournal(
+                    new File(ctx.getFilesDir(), host + "-pairJournal"), keyHelper);
+            this.storageInstantiated = true;
         }
 
         private void instantiateKeyHelper() {
             try {
                 keyHelper = new KeyHelper(host);
+                pairStateJournal = new PairStateJournal(
+                        new File(ctx.getFilesDir(), host + "-pairJournal"), keyHelper);
                 confirmStoredKey();
             } catch (
                     IOException | NoSuchAlgorithmException | KeyStoreException e) {
@@ -97,80 +127,195 @@
             while (!storageInstantiated) {
                 wait();
             }
-            try {
-                String storedHostStr = readHostFromFile();
-                if (Objects.equals(storedHostStr, "")) {
-                    callback.noStoredPairs();
-                    return;
-                }
-                JSONObject storedPairs = new JSONObject(storedHostStr);
-                String clientId = storedPairs.getString("clientId");
-                String pairMapStates = storedPairs.optString("pairMapStates", "");
-                if (pairMapStates.isEmpty()) {
-                    callback.foundClientId(clientId);
-                } else {
-                    storedHosts.put(host, storedHostStr);
-                    foundStoredHost = true;
-                    callback.foundStoredPairs(storedHosts.get(host));
-                }
-            } catch (JSONException e) {
-                callback.onError(e.getMessage());
+            StoredHostState storedHost = readHostFromFile();
+            if (storedHost == null) {
+                callback.noStoredPairs();
+                return;
+            }
+            generation = storedHost.generation;
+            if (storedHost.hasPairStates()) {
+                // Bring the snapshot up to date with the per-pair updates made since it was written.
+                storedHost = pairStateJournal.replay(storedHost);
+                setStoredPairIds(storedHost);
+            }
+            if (!storedHost.hasPairStates()) {
+                callback.foundClientId(storedHost.clientId);
+            } else {
+                storedHosts.put(host, storedHost);
+                foundStoredHost = true;
+                callback.foundStoredPairs(storedHosts.get(host));
             }
         }
 
-        String getStoredPairsForHost(String host) {
+        StoredHostState getStoredPairsForHost(String host) {
             return storedHosts.get(host);
         }
 
-        void removeStoredHost() throws JSONException {
-            String storedHostStr = readHostFromFile();
+        void removeStoredHost() {
+            StoredHostState storedHost = readHostFromFile();
 
             // If there is no file for this host, just return.
-            if (Objects.equals(storedHostStr, "")) {
+            if (storedHost == null) {
                 return;
             }
-            JSONObject stateToStore = new JSONObject(storedHostStr);
-            stateToStore.put("pairMapStates", "");
-            saveHostToFile(stateToStore.toString());
+            saveHostToFile(new StoredHostState(storedHost.clientId, Collections.emptyList()));
         }
 
-        public void saveHostToFile(String data) {
+        // Append only the changed Pairs to the journal. Returns false when a full snapshot has to
+        // be written instead: a Pair is not in the current snapshot, the journal is due for
+        // compaction or has a damaged tail, or the append failed.
+        synchronized boolean appendPairStates(List<StoredHostState.PairState> changedPairStates) {
+            if (pairStateJournal == null) {
+                return false;
+            }
+            for (StoredHostState.PairState pairState : changedPairStates) {
+                if (!storedPairIds.contains(pairState.pairId)) {
+                    return false;
+                }
+            }
+            if (pairStateJournal.needsCompaction()
+                    || pairStateJournal.getRecordCount() + changedPairStates.size()
+                    > RelaySettings.pairJournalCompactionRecords) {
+                return false;
+            }
             try {
-                // Open a file output stream in private mode (MODE_PRIVATE)
-                FileOutputStream fileOutputStream = ctx.openFileOutput(encryptedHostFilename,
-                                                                        Context.MODE_PRIVATE);
+                pairStateJournal.append(generation, changedPairStates);
+                return true;
+            } catch (IOException | RelayException e) {
+                if (BuildConfig.DEBUG) {
+                    Log.w("MTE", "Unable to append to pair journal, writing a full snapshot. Error: " + e.getMessage());
+                }
+                storedPairIds.clear();
+                return false;
+            }
+        }
 
-                byte[] encryptedHost = keyHelper.encryptString(data);
-                fileOutputStream.write(encryptedHost);
+        // Write a full snapshot. This also compacts the journal, whose records are now part of it.
+        synchronized public void saveHostToFile(StoredHostState storedHost) {
+            long saveStarted = System.nanoTime();
+            storedPairIds.clear();
+            storedHost.generation = ++generation;
+            try {
+                File hostFile = new File(ctx.getFilesDir(), encryptedHostFilename);
+                File tempFile = new File(ctx.getFilesDir(), encryptedHostFilename + TEMP_SUFFIX);
 
-                // Close the file output stream
-                fileOutputStream.close();
+                // Write the complete record to a temp file and sync it to disk, so a crash
+                // can never leave a half written host file behind.
+                try (FileOutputStream fileOutputStream = new FileOutputStream(tempFile)) {
+                    writeHostFile(fileOutputStream, storedHost.toBytes());
+                    fileOutputStream.getFD().sync();
+                }
+
+                // Keep the previous generation as the fallback, then swap the new one in.
+                if (hostFile.exists()) {
+                    Files.move(hostFile.toPath(),
+                            new File(ctx.getFilesDir(), encryptedHostFilename + BACKUP_SUFFIX).toPath(),
+                            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                }
+                Files.move(tempFile.toPath(), hostFile.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
             } catch (Exception e) {
                 throw new RelayException(getClass().getSimpleName(),
                         "Unable to store Host: Error: " + e.getMessage());
             }
+            if (pairStateJournal != null) {
+                pairStateJournal.truncate();
+            }
+            setStoredPairIds(storedHost);
+            if (BuildConfig.DEBUG) {
+                Log.d("MTE", "Stored host " + host + " with " + storedHost.pairStates.size()
+                        + " pairs in " + (System.nanoTime() - saveStarted) / 1000 + "us");
+            }
         }
 
-        public String readHostFromFile() {
-            try {
-                // Open a file input stream
-                FileInputStream fileInputStream = ctx.openFileInput(encryptedHostFilename);
+        private void setStoredPairIds(StoredHostState storedHost) {
+            storedPairIds.clear();
+            for (StoredHostState.PairState pairState : storedHost.pairStates) {
+                storedPairIds.add(pairState.pairId);
+            }
+        }
 
-                // Read the data from the file
-                byte[] fileBytes = new byte[fileInputStream.available()];
-                fileInputStream.read(fileBytes);
-                String decrypted = keyHelper.decryptBytes(fileBytes);
+        // Returns null if there is no readable stored host. Reads both the binary record and
+        // the JSON written by earlier versions. If the host file is damaged, falls back to the
+        // previous generation kept alongside it.
+        public StoredHostState readHostFromFile() {
+            File hostFile = new File(ctx.getFilesDir(), encryptedHostFilename);
+            StoredHostState storedHost = readHostFromFile(hostFile);
+            if (storedHost == null) {
+                File backupFile = new File(ctx.getFilesDir(), encryptedHostFilename + BACKUP_SUFFIX);
+                storedHost = readHostFromFile(backupFile);
+                if (storedHost != null && BuildConfig.DEBUG) {
+                    Log.w("MTE", "Restored host " + host + " from previous generation "
+                            + storedHost.generation);
+                }
+            }
+            return storedHost;
+        }
 
-                // Close the file input stream
-                fileInputStream.close();
-                return decrypted;
+        private StoredHostState readHostFromFile(File file) {
+            if (!file.exists()) {
+                return null;
+            }
+            try {
+                return StoredHostState.parse(readEncryptedHost(Files.readAllBytes(file.toPath())));
             } catch (Exception e) {
-                return "";
+                if (BuildConfig.DEBUG) {
+                    Log.w("MTE", "Stored host file " + file.getName() + " is unreadable. Error: "
+                            + e.getMessage());
+                }
+                return null;
+            }
+        }
+
+        // The host file is: magic (4 bytes), the encrypted record, then the CRC32 of the
+        // encrypted record (4 bytes). Files written by earlier versions are the bare encrypted
+        // record.
+        private void writeHostFile(FileOutputStream fileOutputStream, byte[] hostBytes) throws IOException {
+            fileOutputStream.write(HOST_FILE_MAGIC);
+
+            // Encrypt straight into the file. The cipher stream must not close the file,
+            // the checksum and sync still follow.
+            CheckedOutputStream checkedOutputStream = new CheckedOutputStream(
+                    new FilterOutputStream(fileOutputStream) {
+                        @Override
+                        public void write(byte[] b, int off, int len) throws IOException {
+                            out.write(b, off, len);
+                        }
+
+                        @Override
+                        public void close() throws IOException {
+                            flush();
+                        }
+                    }, new CRC32());
+            try (OutputStream encryptingStream = keyHelper.encryptingStream(checkedOutputStream)) {
+                encryptingStream.write(hostBytes);
+            }
+            fileOutputStream.write(ByteBuffer.allocate(4)
+                    .putInt((int) checkedOutputStream.getChecksum().getValue())
+                    .array());
+        }
+
+        private byte[] readEncryptedHost(byte[] fileBytes) throws IOException {
+            if (fileBytes.length < 8
+                    || !Arrays.equals(Arrays.copyOf(fileBytes, 4), HOST_FILE_MAGIC)) {
+                return keyHelper.decryptToBytes(fileBytes);
+            }
+            int encryptedLength = fileBytes.length - 8;
+            CRC32 crc32 = new CRC32();
+            crc32.update(fileBytes, 4, encryptedLength);
+            if (ByteBuffer.wrap(fileBytes, 4 + encryptedLength, 4).getInt() != (int) crc32.getValue()) {
+                throw new IOException("Host file checksum mismatch.");
             }
+            return keyHelper.decryptToBytes(fileBytes, 4, encryptedLength);
         }
 
         public void deleteStoredHost() {
+            if (pairStateJournal != null) {
+                pairStateJournal.truncate();
+            }
             File file = new File(ctx.getFilesDir(), encryptedHostFilename);
+            new File(ctx.getFilesDir(), encryptedHostFilename + BACKUP_SUFFIX).delete();
+            new File(ctx.getFilesDir(), encryptedHostFilename + TEMP_SUFFIX).delete();
 
             if (file.exists()) {
                 if (!file.delete()) {
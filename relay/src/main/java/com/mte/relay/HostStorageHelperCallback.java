@@ -29,6 +29,6 @@ public interface HostStorageHelperCallback {
     void onError(String message);
     void noStoredPairs();
     void foundClientId(String clientId);
-    void foundStoredPairs(String storedHostsStr);
+    void foundStoredPairs(StoredHostState storedHost);
 
 }
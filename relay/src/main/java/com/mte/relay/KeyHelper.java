@@ -28,8 +28,12 @@
     import android.security.keystore.KeyGenParameterSpec;
     import android.security.keystore.KeyProperties;
 
+    import java.io.DataInputStream;
     import java.io.IOException;
+    import java.io.InputStream;
+    import java.io.OutputStream;
     import java.nio.charset.StandardCharsets;
+    import java.security.GeneralSecurityException;
     import java.security.InvalidAlgorithmParameterException;
     import java.security.KeyStore;
     import java.security.KeyStoreException;
@@ -37,8 +41,13 @@
     import java.security.NoSuchProviderException;
     import java.security.UnrecoverableEntryException;
     import java.security.cert.CertificateException;
+    import java.util.Arrays;
+    import java.util.Map;
+    import java.util.concurrent.ConcurrentHashMap;
 
     import javax.crypto.Cipher;
+    import javax.crypto.CipherInputStream;
+    import javax.crypto.CipherOutputStream;
     import javax.crypto.KeyGenerator;
     import javax.crypto.SecretKey;
     import javax.crypto.spec.IvParameterSpec;
@@ -48,8 +57,21 @@
         private final String KEY_ALIAS;
         private static final String KEYSTORE_PROVIDER = "AndroidKeyStore";
         private static final String TRANSFORMATION = "AES/CBC/PKCS7Padding";
+        private static final int IV_LENGTH = 16;
         private final KeyStore keyStore;
 
+        // Keystore lookups and Cipher.getInstance go through the keystore service, so keep
+        // the key of every alias and a Cipher per thread instead of fetching them on every use.
+        private static final Map<String, SecretKey> secretKeys = new ConcurrentHashMap<>();
+        private static final ThreadLocal<Cipher> threadCipher = ThreadLocal.withInitial(() -> {
+            try {
+                return Cipher.getInstance(TRANSFORMATION);
+            } catch (GeneralSecurityException e) {
+                throw new RelayException(KeyHelper.class.getSimpleName(),
+                        "Unable to create Cipher: Error: " + e.getMessage());
+            }
+        });
+
         public KeyHelper(String hostUrlB64) {
             this.KEY_ALIAS = hostUrlB64;
             try {
@@ -62,6 +84,13 @@
             }
         }
 
+        // Use secretKey for hostUrlB64 instead of the Android keystore, e.g. in tests on the JVM.
+        KeyHelper(String hostUrlB64, SecretKey secretKey) {
+            this.KEY_ALIAS = hostUrlB64;
+            this.keyStore = null;
+            secretKeys.put(hostUrlB64, secretKey);
+        }
+
         public void generateSecretKey() {
             try {
                 if (!keyStore.containsAlias(KEY_ALIAS)) {
@@ -79,7 +108,7 @@
                             .build();
 
                     keyGenerator.init(keyGenParameterSpec);
-                    keyGenerator.generateKey();
+                    secretKeys.put(KEY_ALIAS, keyGenerator.generateKey());
                 }
             } catch (NoSuchAlgorithmException | NoSuchProviderException | KeyStoreException |
                      InvalidAlgorithmParameterException e) {
@@ -89,21 +118,27 @@
         }
 
         public Boolean hasSecretKey() throws KeyStoreException {
-            if (keyStore.containsAlias(KEY_ALIAS)) {
+            if (secretKeys.containsKey(KEY_ALIAS) || keyStore.containsAlias(KEY_ALIAS)) {
                 return true;
             }
             return false;
         }
 
         public SecretKey getSecretKey() {
+            SecretKey secretKey = secretKeys.get(KEY_ALIAS);
+            if (secretKey != null) {
+                return secretKey;
+            }
             try {
                 if (keyStore.containsAlias(KEY_ALIAS)) {
 
                     // Retrieve the secret key entry from the Keystore
                     KeyStore.SecretKeyEntry secretKeyEntry = (KeyStore.SecretKeyEntry) keyStore.getEntry(KEY_ALIAS, null);
 
-                    // Get the secret key from the entry
-                    return secretKeyEntry.getSecretKey();
+                    // Get the secret key from the entry, keystore lookups are slow so keep it.
+                    secretKey = secretKeyEntry.getSecretKey();
+                    secretKeys.put(KEY_ALIAS, secretKey);
+                    return secretKey;
                 } else {
                     return null;
                 }
@@ -115,60 +150,100 @@
         }
 
         public byte[] encryptString(String plaintext) {
-            try {
-                if (keyStore.containsAlias(KEY_ALIAS)) {
-                    // Retrieve the secret key entry from the keystore
-                    KeyStore.SecretKeyEntry secretKeyEntry = (KeyStore.SecretKeyEntry) keyStore.getEntry(KEY_ALIAS, null);
-                    SecretKey secretKey = secretKeyEntry.getSecretKey();
+            return encryptBytes(plaintext.getBytes(StandardCharsets.UTF_8));
+        }
 
+        public byte[] encryptBytes(byte[] plainBytes) {
+            try {
+                SecretKey secretKey = getSecretKey();
+                if (secretKey != null) {
                     // Initialize Cipher for encryption
-                    Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+                    Cipher cipher = threadCipher.get();
                     cipher.init(Cipher.ENCRYPT_MODE, secretKey);
 
-                    // Get IV from cipher
+                    // Get IV from cipher, then write IV and encrypted data into one array
                     byte[] iv = cipher.getIV();
-                    byte[] encrypted = cipher.doFinal(plaintext.getBytes(StandardCharsets.UTF_8));
-
-                    // Combine IV and encrypted data
-                    byte[] result = new byte[iv.length + encrypted.length];
+                    byte[] result = new byte[iv.length + cipher.getOutputSize(plainBytes.length)];
                     System.arraycopy(iv, 0, result, 0, iv.length);
-                    System.arraycopy(encrypted, 0, result, iv.length, encrypted.length);
+                    int encryptedLength = cipher.doFinal(plainBytes, 0, plainBytes.length, result, iv.length);
 
-                    return result;
+                    return encryptedLength == result.length - iv.length
+                            ? result : Arrays.copyOf(result, iv.length + encryptedLength);
                 }
 
             } catch (Exception e) {
+                secretKeys.remove(KEY_ALIAS);
                 throw new RelayException(getClass().getSimpleName(),
-                        "Unable to encryptString: Error: " + e.getMessage());
+                        "Unable to encryptBytes: Error: " + e.getMessage());
             }
             return null;
         }
 
         public String decryptBytes(byte[] encryptedBytes) {
-            try {
-                if (keyStore.containsAlias(KEY_ALIAS)) {
-                    // Retrieve the secret key entry from the keystore
-                    KeyStore.SecretKeyEntry secretKeyEntry = (KeyStore.SecretKeyEntry) keyStore.getEntry(KEY_ALIAS, null);
-                    SecretKey secretKey = secretKeyEntry.getSecretKey();
-
-                    // Initialize Cipher for decryption
-                    Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            byte[] decrypted = decryptToBytes(encryptedBytes);
+            return decrypted != null ? new String(decrypted, StandardCharsets.UTF_8) : null;
+        }
 
-                    // Extract IV from the input
-                    byte[] iv = new byte[16];
-                    System.arraycopy(encryptedBytes, 0, iv, 0, iv.length);
+        public byte[] decryptToBytes(byte[] encryptedBytes) {
+            return decryptToBytes(encryptedBytes, 0, encryptedBytes.length);
+        }
 
-                    // Initialize cipher with IV and secret key
-                    cipher.init(Cipher.DECRYPT_MODE, secretKey, new IvParameterSpec(iv));
+        public byte[] decryptToBytes(byte[] encryptedBytes, int offset, int length) {
+            try {
+                SecretKey secretKey = getSecretKey();
+                if (secretKey != null) {
+                    // Initialize cipher with IV from the input and secret key
+                    Cipher cipher = threadCipher.get();
+                    cipher.init(Cipher.DECRYPT_MODE, secretKey,
+                            new IvParameterSpec(encryptedBytes, offset, IV_LENGTH));
 
                     // Decrypt the data
-                    byte[] decrypted = cipher.doFinal(encryptedBytes, iv.length, encryptedBytes.length - iv.length);
-                    return new String(decrypted, StandardCharsets.UTF_8);
+                    return cipher.doFinal(encryptedBytes, offset + IV_LENGTH, length - IV_LENGTH);
                 }
             } catch (Exception e) {
+                secretKeys.remove(KEY_ALIAS);
                 throw new RelayException(getClass().getSimpleName(),
-                        "Unable to decryptBytes: Error: " + e.getMessage());
+                        "Unable to decryptToBytes: Error: " + e.getMessage());
             }
             return null;
         }
+
+        // Streaming equivalents of encryptBytes and decryptToBytes, using the same layout of IV
+        // followed by encrypted data. Closing the returned stream closes the wrapped one.
+        public OutputStream encryptingStream(OutputStream outputStream) throws IOException {
+            try {
+                // A stream keeps its Cipher until closed, so it can't share the thread's one.
+                Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+                cipher.init(Cipher.ENCRYPT_MODE, requireSecretKey());
+                outputStream.write(cipher.getIV());
+                return new CipherOutputStream(outputStream, cipher);
+            } catch (GeneralSecurityException e) {
+                secretKeys.remove(KEY_ALIAS);
+                throw new RelayException(getClass().getSimpleName(),
+                        "Unable to create encrypting stream: Error: " + e.getMessage());
+            }
+        }
+
+        public InputStream decryptingStream(InputStream inputStream) throws IOException {
+            byte[] iv = new byte[IV_LENGTH];
+            new DataInputStream(inputStream).readFully(iv);
+            try {
+                Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+                cipher.init(Cipher.DECRYPT_MODE, requireSecretKey(), new IvParameterSpec(iv));
+                return new CipherInputStream(inputStream, cipher);
+            } catch (GeneralSecurityException e) {
+                secretKeys.remove(KEY_ALIAS);
+                throw new RelayException(getClass().getSimpleName(),
+                        "Unable to create decrypting stream: Error: " + e.getMessage());
+            }
+        }
+
+        private SecretKey requireSecretKey() {
+            SecretKey secretKey = getSecretKey();
+            if (secretKey == null) {
+                throw new RelayException(getClass().getSimpleName(),
+                        "No SecretKey stored for " + KEY_ALIAS);
+            }
+            return secretKey;
+        }
     }
@@ -24,71 +24,287 @@
 
 package com.mte.relay;
 
-import android.util.Base64;
 import android.util.Log;
 
 import com.eclypses.mte.MteBase;
-
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
+import com.eclypses.mte.MteStatus;
 
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 public class MteHelper {
 
-    public Map<String, Pair> pairMap;
+    private volatile PairPool pairPool = PairPool.EMPTY;
 
-    int nextPair = 0;
+    // Quarantined Pairs that were leased at the time. The request holding one still resolves it
+    // by id until it hands it back with returnPair().
+    private final Map<String, Pair> quarantinedPairs = new ConcurrentHashMap<>();
 
-    synchronized public boolean refillPairMap(String storedPairs) {
-        JSONArray storedPairsArray;
-        try {
-            storedPairsArray = new JSONArray(storedPairs);
-        } catch (JSONException e) {
-            throw new RelayException(getClass().getSimpleName(),
-                    "JSONException: Error: " + e.getMessage());
+    // Starting point of the next lease scan, so leases spread across the pool.
+    private final AtomicInteger leaseCursor = new AtomicInteger();
+
+    // Threads with no free Pair wait on poolLock. waitingLeases lets returnPair() skip the
+    // monitor entirely when nobody is waiting.
+    private final Object poolLock = new Object();
+    private final AtomicInteger waitingLeases = new AtomicInteger();
+
+    // Bumped whenever the whole pool is replaced. Guarded by poolLock.
+    private volatile int poolGeneration = 0;
+
+    // Lease statistics since the last takeLeaseStats(), used to autoscale the pool.
+    private final AtomicInteger leaseCount = new AtomicInteger();
+    private final AtomicInteger waitedLeaseCount = new AtomicInteger();
+    private final AtomicLong leaseWaitNanos = new AtomicLong();
+    private final AtomicInteger leasedPairs = new AtomicInteger();
+    private final AtomicInteger peakLeasedPairs = new AtomicInteger();
+
+    static class LeaseStats {
+        final int leases;
+        final int waitedLeases;
+        final long totalWaitMs;
+        final int peakLeasedPairs;
+
+        LeaseStats(int leases, int waitedLeases, long totalWaitMs, int peakLeasedPairs) {
+            this.leases = leases;
+            this.waitedLeases = waitedLeases;
+            this.totalWaitMs = totalWaitMs;
+            this.peakLeasedPairs = peakLeasedPairs;
         }
+    }
+
+    public boolean refillPairMap(List<StoredHostState.PairState> storedPairStates) {
         // Recreate the Pairs from Stored Values
-        pairMap = new LinkedHashMap<>();
-        for (int i = 0; i < storedPairsArray.length(); i++) {
-            JSONObject storedPair;
+        Pair[] restoredPairs = new Pair[storedPairStates.size()];
+        for (int i = 0; i < restoredPairs.length; i++) {
+            StoredHostState.PairState storedPair = storedPairStates.get(i);
+            restoredPairs[i] = new Pair(storedPair.pairId,
+                    storedPair.encoderState,
+                    storedPair.decoderState);
+        }
+        replacePairPool(new PairPool(restoredPairs));
+        return true;
+    }
+
+    // Make freshly paired and instantiated Pairs the whole pool, e.g. after a full pairing.
+    public void replacePairs(Collection<Pair> pairedPairs) {
+        replacePairPool(new PairPool(pairedPairs));
+    }
+
+    // New Pairs that are not part of the pool yet, see addPairs() and replacePairs().
+    public Map<String, Pair> createPairs(int count) {
+        // Use Pairs whose keypairs were generated ahead of time first. Each remaining Pair
+        // generates two Kyber keypairs, spread them over the common fork-join pool.
+        List<Pair> newPairs = PairReserve.take(count);
+        newPairs.addAll(IntStream.range(newPairs.size(), count)
+                .parallel()
+                .mapToObj(i -> new Pair())
+                .collect(Collectors.toList()));
+        Map<String, Pair> newPairMap = new LinkedHashMap<>();
+        for (Pair pair : newPairs) {
+            newPairMap.put(pair.pairId, pair);
+        }
+        return newPairMap;
+    }
+
+    // Add paired Pairs to the live pool. Returns false, leaving the pool alone, if the pool
+    // was replaced since poolGeneration was read, e.g. by a re-pair.
+    public boolean addPairs(Collection<Pair> newPairs, int expectedPoolGeneration) {
+        synchronized (poolLock) {
+            if (poolGeneration != expectedPoolGeneration) {
+                return false;
+            }
+            List<Pair> pairs = new ArrayList<>(Arrays.asList(pairPool.pairs));
+            pairs.addAll(newPairs);
+            pairPool = new PairPool(pairs);
+            // Wake any waiting threads so they lease the new Pairs.
+            poolLock.notifyAll();
+            return true;
+        }
+    }
+
+    // Take up to count Pairs that are not leased out of the pool. Returns the number retired.
+    // A retired Pair is claimed like a lease and never handed back, so nobody can use it.
+    public int retireIdlePairs(int count) {
+        synchronized (poolLock) {
+            // Always keep one Pair, the pool must never run empty while paired.
+            count = Math.min(count, pairPool.size() - 1);
+            List<Pair> keptPairs = new ArrayList<>(pairPool.size());
+            int retired = 0;
+            for (Pair pair : pairPool.pairs) {
+                if (retired < count && pair.leased.compareAndSet(false, true)) {
+                    retired++;
+                } else {
+                    keptPairs.add(pair);
+                }
+            }
+            if (retired > 0) {
+                pairPool = new PairPool(keptPairs);
+            }
+            return retired;
+        }
+    }
+
+    // Take a Pair the server rejected out of the pool, so no new request leases it. A request
+    // that has it leased keeps working with it until it returns it. Returns false if the Pair
+    // is not in the pool or is the last one.
+    public boolean quarantinePair(String pairId) {
+        synchronized (poolLock) {
+            Pair pair = pairPool.get(pairId);
+            if (pair == null || pairPool.size() < 2) {
+                return false;
+            }
+            // Claim it so a thread holding an older snapshot can't lease it. If it is leased
+            // already, it's counted as returned here and returnPair() only lets go of it.
+            if (!pair.leased.compareAndSet(false, true)) {
+                leasedPairs.decrementAndGet();
+                quarantinedPairs.put(pairId, pair);
+            }
+            List<Pair> keptPairs = new ArrayList<>(pairPool.size() - 1);
+            for (Pair keptPair : pairPool.pairs) {
+                if (keptPair != pair) {
+                    keptPairs.add(keptPair);
+                }
+            }
+            pairPool = new PairPool(keptPairs);
+            return true;
+        }
+    }
+
+    public int getPoolSize() {
+        return pairPool.size();
+    }
+
+    int getPoolGeneration() {
+        return poolGeneration;
+    }
+
+    // Decrypt the Kyber secrets and instantiate the encoders and decoders of freshly paired
+    // Pairs, in parallel.
+    public void instantiatePairs(Collection<Pair> pairs) throws MteException {
+        pairs.parallelStream().forEach(Pair::createEncoderAndDecoder);
+    }
+
+    public void clearPairMap() {
+        replacePairPool(PairPool.EMPTY);
+    }
+
+    private void replacePairPool(PairPool newPairPool) {
+        synchronized (poolLock) {
+            pairPool = newPairPool;
+            poolGeneration++;
+            // Pairs leased from the old pool are never handed back to the new one.
+            leasedPairs.set(0);
+            quarantinedPairs.clear();
+            // Wake any waiting threads so they lease from the new pool.
+            poolLock.notifyAll();
+        }
+    }
+
+    // Check out a Pair for the exclusive use of one request/response session. Blocks until a
+    // Pair is free. The Pair must be handed back with returnPair() once the response is decoded.
+    public Pair leasePair() throws InterruptedException {
+        leaseCount.incrementAndGet();
+        Pair pair = tryLeasePair();
+        if (pair != null) {
+            onLeased();
+            return pair;
+        }
+        long waitStarted = System.nanoTime();
+        synchronized (poolLock) {
+            waitingLeases.incrementAndGet();
             try {
-                storedPair = storedPairsArray.getJSONObject(i);
-                Pair pair = new Pair(storedPair.getString("pairId"),
-                        storedPair.getString("encoderState"),
-                        storedPair.getString("decoderState"));
-                pairMap.put(pair.pairId, pair);
-            } catch (JSONException e) {
-                throw new RelayException(getClass().getSimpleName(),
-                        "JSONException: Error: " + e.getMessage());
+                while ((pair = tryLeasePair()) == null) {
+                    poolLock.wait();
+                }
+            } finally {
+                waitingLeases.decrementAndGet();
             }
         }
-        return true;
+        waitedLeaseCount.incrementAndGet();
+        leaseWaitNanos.addAndGet(System.nanoTime() - waitStarted);
+        onLeased();
+        return pair;
+    }
+
+    // Lease a Pair only if one is free right now, otherwise null.
+    public Pair leasePairIfFree() {
+        Pair pair = tryLeasePair();
+        if (pair != null) {
+            leaseCount.incrementAndGet();
+            onLeased();
+        }
+        return pair;
+    }
+
+    private void onLeased() {
+        int leased = leasedPairs.incrementAndGet();
+        int peak;
+        while (leased > (peak = peakLeasedPairs.get())
+                && !peakLeasedPairs.compareAndSet(peak, leased)) {
+            // Retry, another lease raised the peak meanwhile.
+        }
+    }
+
+    LeaseStats takeLeaseStats() {
+        return new LeaseStats(leaseCount.getAndSet(0),
+                waitedLeaseCount.getAndSet(0),
+                TimeUnit.NANOSECONDS.toMillis(leaseWaitNanos.getAndSet(0)),
+                peakLeasedPairs.getAndSet(leasedPairs.get()));
     }
 
-    public Map<String, Pair> createPairMap(int count) {
-        pairMap = new LinkedHashMap<>();
-        for (int i=0; i<count; i++) {
-            Pair pair = new Pair();
-            pairMap.put(pair.pairId, pair);
+    private Pair tryLeasePair() {
+        Pair[] pairs = pairPool.pairs;
+        int count = pairs.length;
+        if (count == 0) {
+            return null;
+        }
+        int start = (leaseCursor.getAndIncrement() & Integer.MAX_VALUE) % count;
+        for (int i = 0; i < count; i++) {
+            Pair pair = pairs[(start + i) % count];
+            if (pair.leased.compareAndSet(false, true)) {
+                return pair;
+            }
+        }
+        return null;
+    }
+
+    public void returnPair(String pairId) {
+        if (pairId == null) {
+            return;
+        }
+        // The Pair may have been quarantined, or belong to a pool that was replaced by a
+        // re-pair. It's not handed back in either case.
+        Pair pair = pairPool.get(pairId);
+        if (pair == null) {
+            quarantinedPairs.remove(pairId);
+            return;
+        }
+        if (!pair.leased.compareAndSet(true, false)) {
+            return;
+        }
+        leasedPairs.decrementAndGet();
+        if (waitingLeases.get() > 0) {
+            synchronized (poolLock) {
+                poolLock.notify();
+            }
         }
-        return pairMap;
     }
 
     public EncodeResult encode(String pairId, String plaintext) throws MteException {
         EncodeResult result = new EncodeResult();
-        Pair pair;
-        if (pairId != null) {
-            pair = pairMap.get(pairId);
-        } else {
-            pair = getNextPair();
-        }
+        checkLeasedPairId(getClass().getSimpleName(), pairId);
+        Pair pair = getPair(pairId);
         if (pair != null) {
             result.pairId = pair.pairId;
             result.encodedStr = pair.encode(plaintext);
@@ -98,12 +314,8 @@ public class MteHelper {
 
     public EncodeResult encode(String pairId, byte[] bytes) throws MteException {
         EncodeResult result = new EncodeResult();
-        Pair pair;
-        if (pairId != null) {
-            pair = pairMap.get(pairId);
-        } else {
-            pair = getNextPair();
-        }
+        checkLeasedPairId(getClass().getSimpleName(), pairId);
+        Pair pair = getPair(pairId);
         if (pair != null) {
             result.pairId = pair.pairId;
             result.encodedBytes = pair.encode(bytes);
@@ -111,10 +323,24 @@ public class MteHelper {
         return result;
     }
 
+    public byte[] markEncoderState(String pairId) throws MteException {
+        checkLeasedPairId(getClass().getSimpleName(), pairId);
+        Pair pair = getPair(pairId);
+        return pair != null ? pair.markEncoderState() : null;
+    }
+
+    public void rewindEncoderState(String pairId, byte[] state) throws MteException {
+        checkLeasedPairId(getClass().getSimpleName(), pairId);
+        Pair pair = getPair(pairId);
+        if (pair != null && state != null) {
+            pair.rewindEncoderState(state);
+        }
+    }
+
     public DecodeResult decode(String pairId, String encoded) throws MteException {
         DecodeResult decodeResult = new DecodeResult();
         checkPairId(getClass().getSimpleName(), pairId);
-        Pair pair = pairMap.get(pairId);
+        Pair pair = getPair(pairId);
         if (pair != null) {
             decodeResult = pair.decode(encoded);
         }
@@ -126,7 +352,7 @@ public class MteHelper {
     public DecodeResult decode(String pairId, byte[] encoded) throws MteException {
         DecodeResult decodeResult = new DecodeResult();
         checkPairId(getClass().getSimpleName(), pairId);
-        Pair pair = pairMap.get(pairId);
+        Pair pair = getPair(pairId);
         if (pair != null) {
             decodeResult = pair.decode(encoded);
         }
@@ -135,7 +361,7 @@ public class MteHelper {
 
     public void startDecrypt(String pairId) throws MteException {
         checkPairId(getClass().getSimpleName(), pairId);
-        Pair pair = pairMap.get(pairId);
+        Pair pair = getPair(pairId);
         if (pair != null) {
             pair.startDecrypt();
         }
@@ -144,7 +370,7 @@ public class MteHelper {
     public DecodeResult decryptChunk(String pairId, byte[] encoded) {
         checkPairId(getClass().getSimpleName(), pairId);
         DecodeResult result = new DecodeResult();
-        Pair pair = pairMap.get(pairId);
+        Pair pair = getPair(pairId);
         if (pair != null) {
             result.pairId = pair.pairId;
             result.decodedBytes = pair.decryptChunk(encoded);
@@ -155,9 +381,12 @@ public class MteHelper {
     public int decryptChunk(String pairId, byte[] encrypted, int encOff, int encLen, byte[] decrypted, int decOff) {
         checkPairId(getClass().getSimpleName(), pairId);
         int encryptedBytes = 0;
-        Pair pair = pairMap.get(pairId);
+        Pair pair = getPair(pairId);
         if (pair != null) {
             encryptedBytes = pair.decryptChunk(encrypted, encOff, encLen, decrypted, decOff);
+            if (encryptedBytes < 0) {
+                throw new MteException(MteStatus.mte_status_invalid_input, "Decrypt Chunk Error");
+            }
         }
         return encryptedBytes;
     }
@@ -165,7 +394,7 @@ public class MteHelper {
     public DecodeResult finishDecrypt(String pairId) throws MteException {
         checkPairId(getClass().getSimpleName(), pairId);
         DecodeResult result = new DecodeResult();
-        Pair pair = pairMap.get(pairId);
+        Pair pair = getPair(pairId);
         if (pair != null) {
             result.pairId = pair.pairId;
             MteBase.ArrStatus arrStatus = pair.finishDecrypt();
@@ -174,18 +403,28 @@ public class MteHelper {
         return result;
     }
 
-    public String getNextPairId() {
-        return getNextPair().pairId;
+    public int getEncryptFinishBytes() throws MteException {
+        return pairPool.getEncryptFinishBytes();
     }
 
-    public int getEncryptFinishBytes() throws MteException {
-        Pair pair = getNextPair();
-        return pair.getFinishEncryptBytes();
+    // Abort whatever chunk sessions of pairId were left unfinished, so the Pair can be handed
+    // back in a consistent state. Call it before returning a Pair after a failed transfer.
+    public void abortChunkSessions(String pairId) {
+        Pair pair = pairId != null ? getPair(pairId) : null;
+        if (pair == null) {
+            return;
+        }
+        try {
+            pair.abortEncrypt();
+            pair.abortDecrypt();
+        } catch (MteException e) {
+            Log.e("MTE", "Unable to abort the chunk sessions of Pair " + pairId + ". Error: " + e.getMessage());
+        }
     }
 
     public void startEncrypt(String pairId) throws MteException {
         checkPairId(getClass().getSimpleName(), pairId);
-        Pair pair = pairMap.get(pairId);
+        Pair pair = getPair(pairId);
         if (pair != null) {
             pair.startEncrypt();
         }
@@ -193,7 +432,7 @@ public class MteHelper {
 
     public void encryptChunk(String pairId, byte[] bytes, int len) throws MteException {
         checkPairId(getClass().getSimpleName(), pairId);
-        Pair pair = pairMap.get(pairId);
+        Pair pair = getPair(pairId);
         if (pair != null) {
             pair.encryptChunk(bytes, len);
         }
@@ -201,7 +440,7 @@ public class MteHelper {
 
     public EncodeResult finishEncrypt(String pairId) throws MteException {
         EncodeResult result = new EncodeResult();
-        Pair pair = pairMap.get(pairId);
+        Pair pair = getPair(pairId);
         if (pair != null) {
             result.pairId = pair.pairId;
             MteBase.ArrStatus arrStatus = pair.finishEncrypt();
@@ -211,33 +450,36 @@ public class MteHelper {
     }
 
 
-    private Pair getNextPair() {
-        Set<String> keySet = pairMap.keySet();
-        List<String> listKeys = new ArrayList<>(keySet);
-        String key = listKeys.get(nextPair);
-        if (nextPair == keySet.size()-1) {
-            nextPair = 0;
-        } else {
-            nextPair++;
+    private Pair getPair(String pairId) {
+        Pair pair = pairPool.get(pairId);
+        return pair != null ? pair : quarantinedPairs.get(pairId);
+    }
+
+    public List<StoredHostState.PairState> getPairStates() {
+        Pair[] pairs = pairPool.pairs;
+        List<StoredHostState.PairState> pairStates = new ArrayList<>(pairs.length);
+        for (Pair pair : pairs) {
+            pair.stateChanged.set(false);
+            pairStates.add(getPairState(pair));
         }
-        return pairMap.get(key);
+        return pairStates;
     }
 
-    public String getPairMapStates() {
-        JSONArray pairMapToStore = new JSONArray();
-        pairMap.forEach((pairId, pair) -> {
-            JSONObject pairToStore = new JSONObject();
-            try {
-                pairToStore.put("pairId", pairId)
-                .put("encoderState", Base64.encodeToString(pair.getEncoderState(), Base64.DEFAULT))
-                .put("decoderState", Base64.encodeToString(pair.getDecoderState(), Base64.DEFAULT));
-            } catch (JSONException e) {
-                throw new RelayException(getClass().getSimpleName(),
-                        "JSONException: Error: " + e.getMessage());
+    // States of the Pairs that changed since they were last taken for persistence.
+    public List<StoredHostState.PairState> getChangedPairStates() {
+        List<StoredHostState.PairState> pairStates = new ArrayList<>();
+        for (Pair pair : pairPool.pairs) {
+            if (pair.stateChanged.getAndSet(false)) {
+                pairStates.add(getPairState(pair));
             }
-            pairMapToStore.put(pairToStore);
-        });
-        return pairMapToStore.toString();
+        }
+        return pairStates;
+    }
+
+    private StoredHostState.PairState getPairState(Pair pair) {
+        return new StoredHostState.PairState(pair.pairId,
+                pair.getEncoderState(),
+                pair.getDecoderState());
     }
 
     private void checkPairId(String className, String pairId) {
@@ -246,4 +488,10 @@ public class MteHelper {
         }
     }
 
+    private void checkLeasedPairId(String className, String pairId) {
+        if (pairId == null) {
+            throw new RelayException(className, "No leased pairId passed to Encoder.");
+        }
+    }
+
 }
@@ -0,0 +1,268 @@
+// The MIT License (MIT)
+//
+// Copyright (c) Eclypses, Inc.
+//
+// All rights reserved.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+package com.mte.relay;
+
+import com.android.volley.Request;
+import com.android.volley.toolbox.JsonObjectRequest;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Uploads a file in parts of RelaySettings.multipartUploadPartSize, each part on its own
+// connection and encrypted with its own Pair, up to multipartUploadParallelism at a time.
+// Every part is POSTed to the upload route with encrypted x-mte-upload-* headers naming the
+// upload, the part and its offset. A part that got no response is retried on its own, up to
+// multipartUploadPartRetries times, from the encoder state its Pair had before the part. A part
+// the server answered with an error has been decoded by it, so it fails the upload and has its
+// Pair replaced. Once all parts are
+// in, a JSON manifest listing them is POSTed to the same route with an x-mte-upload-manifest
+// header, and its response is the response of the upload.
+class MultipartUploadHelper {
+
+    static final String UPLOAD_ID_HEADER = "x-mte-upload-id";
+    static final String UPLOAD_PART_HEADER = "x-mte-upload-part";
+    static final String UPLOAD_OFFSET_HEADER = "x-mte-upload-offset";
+    static final String UPLOAD_MANIFEST_HEADER = "x-mte-upload-manifest";
+
+    // Sends the parts, the Host in the library.
+    interface PartUploader {
+
+        byte[] markEncoderState(String pairId) throws MteException;
+
+        void rewindEncoderState(String pairId, byte[] state) throws MteException;
+
+        PartResult uploadPart(String pairId,
+                              Map<String, String> partHeaders,
+                              long offset,
+                              long length,
+                              RelayStreamCompletionCallback progress);
+
+        // The server answered a part on pairId with an error status. It decoded the part, or no
+        // longer knows the Pair, either way the Pair is out of step with it.
+        void rejectPair(int status, String pairId);
+    }
+
+    static class PartResult {
+
+        static final PartResult OK = new PartResult(HttpURLConnection.HTTP_OK, null);
+
+        // The HTTP status, 0 if there was no response.
+        final int status;
+        // Null if the part is in.
+        final String error;
+
+        PartResult(int status, String error) {
+            this.status = status;
+            this.error = error;
+        }
+    }
+
+    private final PartUploader uploader;
+    private final RelayFileRequestProperties reqProperties;
+    private final String route;
+    private final RelayStreamCompletionCallback completionCallback;
+    private final RelayCall call;
+    private final String uploadId = UUID.randomUUID().toString();
+    private final long fileLength;
+    private final long partSize;
+    private final int partCount;
+    private final AtomicInteger nextPart = new AtomicInteger();
+    // Guards bytesSent, and keeps the totals reported in the order they were summed.
+    private final Object progressLock = new Object();
+    private long bytesSent;
+    private volatile String failure;
+
+    MultipartUploadHelper(PartUploader uploader,
+                          RelayFileRequestProperties reqProperties,
+                          String route,
+                          RelayStreamCompletionCallback completionCallback,
+                          RelayCall call) {
+        this.uploader = uploader;
+        this.reqProperties = reqProperties;
+        this.route = route;
+        this.completionCallback = completionCallback;
+        this.call = call;
+        this.fileLength = reqProperties.file.length();
+        this.partSize = Math.max(RelaySettings.multipartUploadPartSize, RelaySettings.streamChunkSize);
+        this.partCount = (int) Math.max(1, (fileLength + partSize - 1) / partSize);
+    }
+
+    // How many Pairs the upload can keep busy.
+    int getMaxParallelism() {
+        return Math.max(1, Math.min(partCount, RelaySettings.multipartUploadParallelism));
+    }
+
+    // Upload all parts with the given leased Pairs, one worker per Pair. This thread works the
+    // first Pair, the others run on the stream pool: they already hold their Pair, so they never
+    // wait for pairing or a lease. Returns null once every part is in, otherwise the error.
+    String uploadParts(List<String> pairIds) {
+        List<Future<?>> workers = new ArrayList<>(pairIds.size() - 1);
+        for (String pairId : pairIds.subList(1, pairIds.size())) {
+            workers.add(RelayExecutors.stream().submit(() -> uploadPartsWith(pairId)));
+        }
+        uploadPartsWith(pairIds.get(0));
+        for (Future<?> worker : workers) {
+            try {
+                worker.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure = "Interrupted waiting for upload parts.";
+            } catch (ExecutionException e) {
+                failure = "Upload part failed. Exception: " + e.getCause();
+            }
+        }
+        if (failure == null && call.isCancelled()) {
+            failure = "Upload cancelled.";
+        }
+        return failure;
+    }
+
+    private void uploadPartsWith(String pairId) {
+        int part;
+        while (failure == null
+                && !call.isCancelled()
+                && (part = nextPart.getAndIncrement()) < partCount) {
+            uploadPart(pairId, part);
+        }
+    }
+
+    private void uploadPart(String pairId, int part) {
+        long offset = part * partSize;
+        long length = Math.min(partSize, fileLength - offset);
+        Map<String, String> partHeaders = new HashMap<>();
+        partHeaders.put(UPLOAD_ID_HEADER, uploadId);
+        partHeaders.put(UPLOAD_PART_HEADER, String.valueOf(part));
+        partHeaders.put(UPLOAD_OFFSET_HEADER, String.valueOf(offset));
+        PartProgress progress = new PartProgress();
+        PartResult result = null;
+        try {
+            byte[] encoderState = uploader.markEncoderState(pairId);
+            for (int attempt = 0; attempt <= RelaySettings.multipartUploadPartRetries; attempt++) {
+                if (attempt > 0) {
+                    // Only this part starts over.
+                    progress.reset();
+                }
+                result = uploader.uploadPart(pairId, partHeaders, offset, length, progress);
+                if (result.error == null) {
+                    return;
+                }
+                if (result.status != 0) {
+                    // The server answered, so its decoder has moved on past this part. Rewinding
+                    // would leave the Pair out of sync, and a retry on it can't succeed.
+                    uploader.rejectPair(result.status, pairId);
+                    break;
+                }
+                // No response, so the server never decoded the part and its decoder is still
+                // where the encoder was before it. Encode the next attempt, or the Pair's next
+                // use, from there.
+                uploader.rewindEncoderState(pairId, encoderState);
+                if (call.isCancelled()) {
+                    return;
+                }
+            }
+        } catch (MteException e) {
+            failure = "Part " + part + " of " + partCount + " failed. Exception: " + e.getMessage();
+            return;
+        }
+        failure = "Part " + part + " of " + partCount + " failed. Error: " + result.error;
+    }
+
+    JSONObject createManifest() throws JSONException {
+        JSONArray parts = new JSONArray();
+        for (int part = 0; part < partCount; part++) {
+            long offset = part * partSize;
+            parts.put(new JSONObject()
+                    .put("part", part)
+                    .put("offset", offset)
+                    .put("length", Math.min(partSize, fileLength - offset)));
+        }
+        return new JSONObject()
+                .put("uploadId", uploadId)
+                .put("fileName", reqProperties.file.getName())
+                .put("size", fileLength)
+                .put("parts", parts);
+    }
+
+    // The request that completes the upload, to send through the Host like any other request.
+    Request<JSONObject> createManifestRequest() throws JSONException {
+        JSONObject manifest = createManifest();
+        String url = reqProperties.serverPath + (route.startsWith("/") ? route : "/" + route);
+        return new JsonObjectRequest(Request.Method.POST, url, manifest, null, null) {
+            @Override
+            public Map<String, String> getHeaders() {
+                Map<String, String> headers = new HashMap<>();
+                headers.put(UPLOAD_MANIFEST_HEADER, uploadId);
+                return headers;
+            }
+        };
+    }
+
+    String[] getManifestHeadersToEncrypt() {
+        return new String[]{UPLOAD_MANIFEST_HEADER};
+    }
+
+    // Adds a part's progress to the progress of the whole upload.
+    private class PartProgress implements RelayStreamCompletionCallback {
+
+        private long reported;
+
+        @Override
+        public void onProgressUpdate(int bytesCompleted, int totalBytes) {
+            onProgressUpdate((long) bytesCompleted, (long) totalBytes);
+        }
+
+        @Override
+        public void onProgressUpdate(long bytesCompleted, long totalBytes) {
+            long delta = bytesCompleted - reported;
+            reported = bytesCompleted;
+            add(delta);
+        }
+
+        void reset() {
+            add(-reported);
+            reported = 0;
+        }
+
+        private void add(long delta) {
+            synchronized (progressLock) {
+                bytesSent += delta;
+                if (completionCallback != null) {
+                    completionCallback.onProgressUpdate(bytesSent, fileLength);
+                }
+            }
+        }
+    }
+}
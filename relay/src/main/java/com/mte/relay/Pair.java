@@ -34,11 +34,14 @@ import com.eclypses.mte.MteMkeDec;
 import com.eclypses.mte.MteMkeEnc;
 import com.eclypses.mte.MteStatus;
 
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 public class Pair {
 
     // Constructor for new Pair
     Pair() {
-        MteKyber.init(MteKyber.KyberStrength.K512);
+        initKyber();
         publicKeySize = MteKyber.getPublicKeySize();
         encryptedSize = MteKyber.getEncryptedSize();
         secretSize = MteKyber.getSecretSize();
@@ -56,13 +59,24 @@ public class Pair {
         checkKyberStatus(kyberStatus, "Decoder Kyber createKeyPair Error.");
     }
 
+    // MteKyber.init sets process wide parameters, set them once rather than from every
+    // constructor, since Pairs are now created in parallel.
+    private static boolean kyberInitialized = false;
+
+    private static synchronized void initKyber() {
+        if (!kyberInitialized) {
+            MteKyber.init(MteKyber.KyberStrength.K512);
+            kyberInitialized = true;
+        }
+    }
+
     // Constructor for existing stored Pair
-    Pair(String pairId, String encoderState, String decoderState) {
+    Pair(String pairId, byte[] encoderState, byte[] decoderState) {
         this.pairId = pairId;
         this.encoder = new MteMkeEnc();
-        this.encoderState = Base64.decode(encoderState, Base64.DEFAULT);
+        this.encoderState = encoderState;
         this.decoder = new MteMkeDec(1000, -64);
-        this.decoderState = Base64.decode(decoderState, Base64.DEFAULT);
+        this.decoderState = decoderState;
     }
 
     String pairId, encPersStr, decPersStr;
@@ -77,57 +91,106 @@ public class Pair {
     private byte[] encoderState = new byte[32];
     private byte[] decoderState = new byte[32];
 
+    // True while the Pair is checked out of the MteHelper pool.
+    final AtomicBoolean leased = new AtomicBoolean(false);
+
+    // Set whenever the encoder or decoder state moves on, cleared when the state is taken for
+    // persistence.
+    final AtomicBoolean stateChanged = new AtomicBoolean(false);
+
+    // When liveState is set, the native encoder and decoder hold the authoritative state and
+    // encoderState/decoderState are only snapshots, refreshed by getEncoderState() and
+    // getDecoderState() when they are dirty. Otherwise the state is restored before and saved
+    // after every call. Fixed per Pair so a settings change can't strand a Pair mid-session.
+    private final boolean liveState = RelaySettings.liveMteState;
+    private final Object encoderLock = new Object();
+    private final Object decoderLock = new Object();
+    private boolean encoderLive = false;
+    private boolean decoderLive = false;
+    private boolean encoderDirty = false;
+    private boolean decoderDirty = false;
+    private boolean encryptInProgress = false;
+    private boolean decryptInProgress = false;
+
     public void createEncoderAndDecoder() throws MteException {
         instantiateEncoder();
         instantiateDecoder();
+        stateChanged.set(true);
     }
 
     private void instantiateEncoder() throws MteException {
-        encoder = new MteMkeEnc();
-        encSecret = new byte[secretSize];
-        int kyberStatus = encMteKyber.decryptSecret(encResponderEncryptedSecret, encSecret);
-        checkKyberStatus(kyberStatus, "Kyber getSharedSecret Error");
-//        encoder = new MteMkeEnc();
-        encoder.setEntropy(encSecret);
-        encoder.setNonce(encNonce);
-        MteStatus  status = encoder.instantiate(encPersStr);
-        checkMteStatus(status, "Encoder Instantiate Error");
-        saveEncoderState();
-        if (BuildConfig.DEBUG) {
-//             Log.i("MTE", "Encoder " + pairId + " Initial State: " + Base64.encodeToString(encoderState, Base64.DEFAULT)); // Used to compare with decoder state on server
+        synchronized (encoderLock) {
+            encoder = new MteMkeEnc();
+            encSecret = new byte[secretSize];
+            int kyberStatus = encMteKyber.decryptSecret(encResponderEncryptedSecret, encSecret);
+            checkKyberStatus(kyberStatus, "Kyber getSharedSecret Error");
+//            encoder = new MteMkeEnc();
+            encoder.setEntropy(encSecret);
+            encoder.setNonce(encNonce);
+            MteStatus  status = encoder.instantiate(encPersStr);
+            checkMteStatus(status, "Encoder Instantiate Error");
+            encoderLive = true;
+            saveEncoderState();
+            if (BuildConfig.DEBUG) {
+//                 Log.i("MTE", "Encoder " + pairId + " Initial State: " + Base64.encodeToString(encoderState, Base64.DEFAULT)); // Used to compare with decoder state on server
+            }
         }
     }
 
     private void instantiateDecoder() throws MteException {
-//        decoder = new MteMkeDec();
-        decoder = new MteMkeDec(10, -63);
-        decSecret = new byte[secretSize];
-        int kyberStatus = decMteKyber.decryptSecret(decResponderEncryptedSecret, decSecret);
-        checkKyberStatus(kyberStatus, "Kyber Decoder getSharedSecret Error");
-        decoder.setEntropy(decSecret);
-        decoder.setNonce(decNonce);
-        MteStatus status = decoder.instantiate(decPersStr);
-        checkMteStatus(status, "Decoder Instantiate Error");
-        if (BuildConfig.DEBUG) {
-//            Log.i("MTE", "Decoder " + pairId + " Initial State: " + Base64.encodeToString(decoderState, Base64.DEFAULT)); // Used to compare with encoder state on server
+        synchronized (decoderLock) {
+//            decoder = new MteMkeDec();
+            decoder = new MteMkeDec(10, -63);
+            decSecret = new byte[secretSize];
+            int kyberStatus = decMteKyber.decryptSecret(decResponderEncryptedSecret, decSecret);
+            checkKyberStatus(kyberStatus, "Kyber Decoder getSharedSecret Error");
+            decoder.setEntropy(decSecret);
+            decoder.setNonce(decNonce);
+            MteStatus status = decoder.instantiate(decPersStr);
+            checkMteStatus(status, "Decoder Instantiate Error");
+            if (BuildConfig.DEBUG) {
+//                Log.i("MTE", "Decoder " + pairId + " Initial State: " + Base64.encodeToString(decoderState, Base64.DEFAULT)); // Used to compare with encoder state on server
+            }
+            decoderLive = true;
+            saveDecoderState();
         }
-        saveDecoderState();
     }
 
     public String encode(String message) throws MteException {
-        restoreEncoderState();
-        MteBase.StrStatus encodeResult = encoder.encodeB64(message);
-        checkMteStatus(encodeResult.status, "Encode Error");
-        saveEncoderState();
-        return encodeResult.str;
+        synchronized (encoderLock) {
+            beforeEncoderUse();
+            MteBase.StrStatus encodeResult = encoder.encodeB64(message);
+            checkMteStatus(encodeResult.status, "Encode Error");
+            afterEncoderUse();
+            return encodeResult.str;
+        }
     }
 
     public byte[] encode(byte[] bytes) throws MteException {
-        restoreEncoderState();
-        MteBase.ArrStatus encodeResult = encoder.encode(bytes);
-        checkMteStatus(encodeResult.status, "Encode Error");
-        saveEncoderState();
-        return encodeResult.arr;
+        return encode(bytes, 0, bytes.length);
+    }
+
+    // Encode straight into the array that is returned, instead of through the encoder's own
+    // direct buffer and a copy out of it.
+    public byte[] encode(byte[] bytes, int off, int len) throws MteException {
+        synchronized (encoderLock) {
+            beforeEncoderUse();
+            byte[] encoded = new byte[encoder.getBuffBytes(len)];
+            MteBase.OffLenStatus encodeResult = encoder.encode(bytes, off, len, encoded, 0);
+            checkMteStatus(encodeResult.status, "Encode Error");
+            afterEncoderUse();
+            // Volley takes the body as a whole array. The encoded bytes normally fill the
+            // buffer, only trim it when they don't.
+            if (encodeResult.off == 0 && encodeResult.bytes == encoded.length) {
+                return encoded;
+            }
+            return Arrays.copyOfRange(encoded, encodeResult.off, encodeResult.off + encodeResult.bytes);
+        }
+    }
+
+    // Size of the array encode(byte[], int, int) encodes len bytes into.
+    int getEncodeBuffBytes(int len) {
+        return encoder.getBuffBytes(len);
     }
 
     public int getFinishEncryptBytes() {
@@ -135,76 +198,204 @@ public class Pair {
     }
 
     public MteStatus startEncrypt() throws MteException {
-        restoreEncoderState();
-        MteStatus status = encoder.startEncrypt();
-        checkMteStatus(status, "Start Encrypt Error");
-        return status;
+        synchronized (encoderLock) {
+            beforeEncoderUse();
+            // Snapshot the state the session starts from, abortEncrypt() goes back to it.
+            if (liveState && encoderDirty) {
+                saveEncoderState();
+            }
+            MteStatus status = encoder.startEncrypt();
+            checkMteStatus(status, "Start Encrypt Error");
+            encryptInProgress = true;
+            return status;
+        }
     }
 
     public MteStatus encryptChunk(byte[] bytes, int len) throws MteException {
-        MteStatus status = encoder.encryptChunk(bytes, 0, len);
-        checkMteStatus(status, "Encrypt Chunk Error");
-        return status;
+        synchronized (encoderLock) {
+            MteStatus status = encoder.encryptChunk(bytes, 0, len);
+            checkMteStatus(status, "Encrypt Chunk Error");
+            return status;
+        }
     }
 
     public MteBase.ArrStatus finishEncrypt() throws MteException {
-        MteBase.ArrStatus encodeResult = encoder.finishEncrypt();
-        checkMteStatus(encodeResult.status, "Finish Encrypt Error");
-        saveEncoderState();
-        return encodeResult;
+        synchronized (encoderLock) {
+            encryptInProgress = false;
+            MteBase.ArrStatus encodeResult = encoder.finishEncrypt();
+            checkMteStatus(encodeResult.status, "Finish Encrypt Error");
+            afterEncoderUse();
+            return encodeResult;
+        }
+    }
+
+    // Give up on an encrypt session that won't be finished, e.g. a failed or cancelled upload.
+    // The encoder goes back to the state the session started from. Does nothing if no session
+    // is in progress.
+    public void abortEncrypt() throws MteException {
+        synchronized (encoderLock) {
+            if (!encryptInProgress) {
+                return;
+            }
+            encryptInProgress = false;
+            restoreEncoderState();
+            encoderLive = true;
+            encoderDirty = false;
+        }
     }
 
     public DecodeResult decode(String encoded) throws MteException {
         DecodeResult decodeResult = new DecodeResult();
         decodeResult.pairId = pairId;
-        restoreDecoderState();
-        MteBase.StrStatus result = decoder.decodeStrB64(encoded);
-        checkMteStatus(result.status, "Decode Error");
-        saveDecoderState();
-        decodeResult.decodedStr = result.str;
+        synchronized (decoderLock) {
+            beforeDecoderUse();
+            MteBase.StrStatus result = decoder.decodeStrB64(encoded);
+            checkMteStatus(result.status, "Decode Error");
+            afterDecoderUse();
+            decodeResult.decodedStr = result.str;
+        }
         return decodeResult;
     }
 
     public DecodeResult decode(byte[] encoded)  throws MteException {
         DecodeResult decodeResult = new DecodeResult();
         decodeResult.pairId = pairId;
-        restoreDecoderState();
-        MteBase.ArrStatus result = decoder.decode(encoded);
-        checkMteStatus(result.status, "Decode Error");
-        saveDecoderState();
-        decodeResult.decodedBytes = result.arr;
+        synchronized (decoderLock) {
+            beforeDecoderUse();
+            MteBase.ArrStatus result = decoder.decode(encoded);
+            checkMteStatus(result.status, "Decode Error");
+            afterDecoderUse();
+            decodeResult.decodedBytes = result.arr;
+        }
         return decodeResult;
     }
 
     public MteStatus startDecrypt() throws MteException {
-        restoreDecoderState();
-        MteStatus status = decoder.startDecrypt();
-        checkMteStatus(status, "Start Decrypt Error");
-        return status;
+        synchronized (decoderLock) {
+            beforeDecoderUse();
+            if (liveState && decoderDirty) {
+                saveDecoderState();
+            }
+            MteStatus status = decoder.startDecrypt();
+            checkMteStatus(status, "Start Decrypt Error");
+            decryptInProgress = true;
+            return status;
+        }
+    }
+
+    public void abortDecrypt() throws MteException {
+        synchronized (decoderLock) {
+            if (!decryptInProgress) {
+                return;
+            }
+            decryptInProgress = false;
+            restoreDecoderState();
+            decoderLive = true;
+            decoderDirty = false;
+        }
     }
 
     public byte[] decryptChunk(byte[] encoded) {
-        return decoder.decryptChunk(encoded);
+        synchronized (decoderLock) {
+            return decoder.decryptChunk(encoded);
+        }
+    }
+
+    // Room decryptChunk() needs in the decrypted buffer for encryptedBytes of input, the
+    // decoder may hold back up to a cipher block from the previous chunk.
+    static int getDecryptChunkBuffBytes(int encryptedBytes) {
+        return encryptedBytes + MteBase.getCiphersBlockBytes(MteBase.getDefaultCipher());
     }
 
     public int decryptChunk(byte[] encrypted, int encOff, int encLen, byte[] decrypted, int decOff) {
-        return decoder.decryptChunk(encrypted, encOff, encLen, decrypted, decOff);
+        synchronized (decoderLock) {
+            return decoder.decryptChunk(encrypted, encOff, encLen, decrypted, decOff);
+        }
     }
 
     public MteBase.ArrStatus finishDecrypt() throws MteException {
-        MteBase.ArrStatus result = decoder.finishDecrypt();
-        checkMteStatus(result.status, "Finish Decrypt Error");
-        saveDecoderState();
-        return result;
+        synchronized (decoderLock) {
+            decryptInProgress = false;
+            MteBase.ArrStatus result = decoder.finishDecrypt();
+            checkMteStatus(result.status, "Finish Decrypt Error");
+            afterDecoderUse();
+            return result;
+        }
     }
 
 
     public byte[] getEncoderState() {
-        return encoderState;
+        synchronized (encoderLock) {
+            // Don't snapshot in the middle of a chunk session, the last complete state is what
+            // should be persisted.
+            if (liveState && encoderDirty && !encryptInProgress) {
+                saveEncoderState();
+            }
+            return encoderState;
+        }
     }
 
     public byte[] getDecoderState() {
-        return decoderState;
+        synchronized (decoderLock) {
+            if (liveState && decoderDirty && !decryptInProgress) {
+                saveDecoderState();
+            }
+            return decoderState;
+        }
+    }
+
+    // A copy of the current encoder state, to rewind to with rewindEncoderState() when what was
+    // encoded after it never reached the server, e.g. a multipart upload part that is retried.
+    public byte[] markEncoderState() throws MteException {
+        synchronized (encoderLock) {
+            if (liveState && encoderLive) {
+                saveEncoderState();
+            }
+            return encoderState.clone();
+        }
+    }
+
+    public void rewindEncoderState(byte[] state) throws MteException {
+        synchronized (encoderLock) {
+            encryptInProgress = false;
+            encoderState = state.clone();
+            restoreEncoderState();
+            encoderLive = true;
+            encoderDirty = false;
+            stateChanged.set(true);
+        }
+    }
+
+    private void beforeEncoderUse() throws MteException {
+        if (!liveState || !encoderLive) {
+            restoreEncoderState();
+            encoderLive = true;
+        }
+    }
+
+    private void afterEncoderUse() throws MteException {
+        stateChanged.set(true);
+        if (liveState) {
+            encoderDirty = true;
+        } else {
+            saveEncoderState();
+        }
+    }
+
+    private void beforeDecoderUse() throws MteException {
+        if (!liveState || !decoderLive) {
+            restoreDecoderState();
+            decoderLive = true;
+        }
+    }
+
+    private void afterDecoderUse() {
+        stateChanged.set(true);
+        if (liveState) {
+            decoderDirty = true;
+        } else {
+            saveDecoderState();
+        }
     }
 
     private void restoreEncoderState() throws MteException {
@@ -213,7 +404,11 @@ public class Pair {
     }
 
     private void saveEncoderState() throws MteException {
-        encoderState = encoder.saveState();
+        // saveState() hands back the encoder's own save buffer, copy it when the snapshot has
+        // to outlive the next save.
+        byte[] savedState = encoder.saveState();
+        encoderState = liveState && savedState != null ? savedState.clone() : savedState;
+        encoderDirty = false;
         if (BuildConfig.DEBUG) {
 //            Log.i("MTE", "Encoder " + pairId + " current state: " + Base64.encodeToString(encoderState, Base64.DEFAULT)); // Used to compare with current decoder state on server
         }
@@ -225,7 +420,9 @@ public class Pair {
     }
 
     private void saveDecoderState() {
-        decoderState = decoder.saveState();
+        byte[] savedState = decoder.saveState();
+        decoderState = liveState && savedState != null ? savedState.clone() : savedState;
+        decoderDirty = false;
         if (BuildConfig.DEBUG) {
 //            Log.i("MTE", "Decoder " + pairId +  " current state: " + Base64.encodeToString(decoderState, Base64.DEFAULT)); // Used to compare with current encoder state on server
         }
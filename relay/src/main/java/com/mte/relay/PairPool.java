@@ -0,0 +1,74 @@
+// The MIT License (MIT)
+//
+// Copyright (c) Eclypses, Inc.
+//
+// All rights reserved.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+package com.mte.relay;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+// An immutable snapshot of the Pairs for one Host. MteHelper swaps the whole snapshot when
+// the pool is created, refilled or cleared, so readers never see a half-built pool.
+final class PairPool {
+
+    static final PairPool EMPTY = new PairPool(new Pair[0]);
+
+    final Pair[] pairs;
+    private final Map<String, Integer> pairIndex;
+
+    // All Pairs share the same MTE options, so this is the same for every Pair in the pool.
+    // Computed on first use because new Pairs have no encoder until pairing completes.
+    private volatile int encryptFinishBytes = -1;
+
+    PairPool(Pair[] pairs) {
+        this.pairs = pairs;
+        this.pairIndex = new HashMap<>(pairs.length * 2);
+        for (int i = 0; i < pairs.length; i++) {
+            pairIndex.put(pairs[i].pairId, i);
+        }
+    }
+
+    PairPool(Collection<Pair> pairs) {
+        this(pairs.toArray(new Pair[0]));
+    }
+
+    Pair get(String pairId) {
+        Integer index = pairIndex.get(pairId);
+        return index != null ? pairs[index] : null;
+    }
+
+    int size() {
+        return pairs.length;
+    }
+
+    int getEncryptFinishBytes() {
+        if (pairs.length == 0) {
+            return 0;
+        }
+        if (encryptFinishBytes < 0) {
+            encryptFinishBytes = pairs[0].getFinishEncryptBytes();
+        }
+        return encryptFinishBytes;
+    }
+}
@@ -0,0 +1,121 @@
+// The MIT License (MIT)
+//
+// Copyright (c) Eclypses, Inc.
+//
+// All rights reserved.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+package com.mte.relay;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.volley.BuildConfig;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+// Optional policy that sizes a Host's pair pool to its load, see RelaySettings.autoscalePairPool.
+// Every autoscaleIntervalMs it looks at the lease statistics of the interval:
+//  - when leases waited longer than leaseWaitGrowThresholdMs on average, the pool grows, by at
+//    most its own size per interval so a burst can't set off a storm of handshakes.
+//  - when no lease waited and at least one Pair stayed free for pairPoolShrinkIdleMs, the pool
+//    retires one idle Pair.
+// The pool stays between pairPoolMinSize and pairPoolMaxSize.
+class PairPoolAutoscaler {
+
+    private final Host host;
+    private final MteHelper mteHelper;
+    private ScheduledFuture<?> scheduledCheck;
+    private long spareSince = -1;
+
+    PairPoolAutoscaler(Host host, MteHelper mteHelper) {
+        this.host = host;
+        this.mteHelper = mteHelper;
+    }
+
+    synchronized void start() {
+        if (scheduledCheck == null) {
+            // Start from a clean interval.
+            mteHelper.takeLeaseStats();
+            scheduledCheck = RelayExecutors.scheduler().scheduleWithFixedDelay(this::check,
+                    RelaySettings.autoscaleIntervalMs,
+                    RelaySettings.autoscaleIntervalMs,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    synchronized void stop() {
+        if (scheduledCheck != null) {
+            scheduledCheck.cancel(false);
+            scheduledCheck = null;
+        }
+        spareSince = -1;
+    }
+
+    private void check() {
+        if (!RelaySettings.autoscalePairPool) {
+            stop();
+            return;
+        }
+        MteHelper.LeaseStats stats = mteHelper.takeLeaseStats();
+        int poolSize = mteHelper.getPoolSize();
+        if (poolSize == 0 || !host.hostPaired) {
+            return;
+        }
+        long averageWaitMs = stats.leases == 0 ? 0 : stats.totalWaitMs / stats.leases;
+        long now = SystemClock.elapsedRealtime();
+        if (averageWaitMs > RelaySettings.leaseWaitGrowThresholdMs
+                && poolSize < RelaySettings.pairPoolMaxSize) {
+            spareSince = -1;
+            int growBy = Math.max(1, Math.min(stats.waitedLeases, poolSize));
+            resize(Math.min(RelaySettings.pairPoolMaxSize, poolSize + growBy));
+        } else if (stats.waitedLeases == 0
+                && stats.peakLeasedPairs < poolSize
+                && poolSize > RelaySettings.pairPoolMinSize) {
+            if (spareSince < 0) {
+                spareSince = now;
+            } else if (now - spareSince >= RelaySettings.pairPoolShrinkIdleMs) {
+                spareSince = now;
+                resize(poolSize - 1);
+            }
+        } else {
+            spareSince = -1;
+        }
+    }
+
+    private void resize(int targetSize) {
+        host.resizePool(targetSize, new InstantiateHostCallback() {
+            @Override
+            public void onError(String message) {
+                if (BuildConfig.DEBUG) {
+                    Log.w("MTE", "Unable to autoscale pair pool. Error: " + message);
+                }
+            }
+
+            @Override
+            public void hostInstantiated(String hostUrl, Host host) {
+                if (BuildConfig.DEBUG) {
+                    Log.d("MTE", "Autoscaled pair pool for " + hostUrl + " to " + host.getPoolSize());
+                }
+            }
+        });
+    }
+}
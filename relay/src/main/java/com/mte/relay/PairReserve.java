@@ -0,0 +1,84 @@
+// The MIT License (MIT)
+//
+// Copyright (c) Eclypses, Inc.
+//
+// All rights reserved.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+package com.mte.relay;
+
+import android.util.Log;
+
+import com.android.volley.BuildConfig;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Reserve of new Pairs whose Kyber keypairs are already generated, so pairing and re-pairing
+// only wait for the network. Holds up to RelaySettings.pairReserveSize Pairs and is refilled
+// on the low priority background thread. The Pairs are not bound to a Host until they are
+// sent to one, so the reserve is shared.
+class PairReserve {
+
+    private static final BlockingQueue<Pair> reserve = new LinkedBlockingQueue<>();
+    private static final AtomicBoolean refilling = new AtomicBoolean(false);
+
+    // Take up to count Pairs, fewer if the reserve is short. Starts a refill.
+    static List<Pair> take(int count) {
+        List<Pair> pairs = new ArrayList<>(count);
+        reserve.drainTo(pairs, count);
+        refill();
+        return pairs;
+    }
+
+    static void refill() {
+        if (reserve.size() >= RelaySettings.pairReserveSize || !refilling.compareAndSet(false, true)) {
+            return;
+        }
+        RelayExecutors.background().execute(() -> {
+            try {
+                while (reserve.size() < RelaySettings.pairReserveSize) {
+                    reserve.offer(new Pair());
+                }
+            } catch (RuntimeException e) {
+                if (BuildConfig.DEBUG) {
+                    Log.w("MTE", "Unable to refill the pair reserve. Error: " + e.getMessage());
+                }
+                return;
+            } finally {
+                refilling.set(false);
+            }
+            // Pairs may have been taken after the last check.
+            refill();
+        });
+    }
+
+    // Drop reserved Pairs beyond the current setting.
+    static void trim() {
+        while (reserve.size() > RelaySettings.pairReserveSize) {
+            if (reserve.poll() == null) {
+                break;
+            }
+        }
+    }
+}
@@ -0,0 +1,207 @@
+// The MIT License (MIT)
+//
+// Copyright (c) Eclypses, Inc.
+//
+// All rights reserved.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+package com.mte.relay;
+
+import android.util.Log;
+
+import com.android.volley.BuildConfig;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+// Append-only journal of single Pair state updates, stored next to the full host file.
+// Each record is: payload length (4 bytes), generation (8 bytes), CRC32 of generation and
+// payload (4 bytes), then the payload, one Pair's state encrypted with the host key.
+// Records only apply to the full snapshot with the same generation, so records left over
+// from before a compaction are ignored. Reading stops at the first torn or corrupt record, and
+// the journal is cut back to the records before it, so later appends can be read again.
+class PairStateJournal {
+
+    private static final int HEADER_BYTES = 4 + 8 + 4;
+
+    private final File journalFile;
+    private final KeyHelper keyHelper;
+    private int recordCount = 0;
+    // Set when replay found a damaged tail it could not cut off. Appending after it would be
+    // unreadable, so the next write has to be a full snapshot.
+    private boolean needsCompaction = false;
+
+    PairStateJournal(File journalFile, KeyHelper keyHelper) {
+        this.journalFile = journalFile;
+        this.keyHelper = keyHelper;
+    }
+
+    int getRecordCount() {
+        return recordCount;
+    }
+
+    boolean needsCompaction() {
+        return needsCompaction;
+    }
+
+    void append(long generation, List<StoredHostState.PairState> pairStates) throws IOException {
+        List<byte[]> records = new ArrayList<>(pairStates.size());
+        int size = 0;
+        for (StoredHostState.PairState pairState : pairStates) {
+            byte[] record = toRecord(generation,
+                    keyHelper.encryptBytes(StoredHostState.pairStateToBytes(pairState)));
+            records.add(record);
+            size += record.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (byte[] record : records) {
+            buffer.put(record);
+        }
+        try (FileOutputStream outputStream = new FileOutputStream(journalFile, true)) {
+            outputStream.write(buffer.array());
+            outputStream.getFD().sync();
+        }
+        recordCount += records.size();
+    }
+
+    // Apply the latest valid record of every Pair in storedHost to its state.
+    StoredHostState replay(StoredHostState storedHost) {
+        recordCount = 0;
+        needsCompaction = false;
+        if (!journalFile.exists()) {
+            return storedHost;
+        }
+        Map<String, StoredHostState.PairState> latestPairStates = new LinkedHashMap<>();
+        for (StoredHostState.PairState pairState : storedHost.pairStates) {
+            latestPairStates.put(pairState.pairId, pairState);
+        }
+        ByteBuffer buffer;
+        try {
+            buffer = ByteBuffer.wrap(readJournal());
+        } catch (IOException e) {
+            needsCompaction = true;
+            return storedHost;
+        }
+        // End of the last record that was read in full.
+        int validLength = 0;
+        while (buffer.remaining() >= HEADER_BYTES) {
+            int payloadLength = buffer.getInt();
+            long generation = buffer.getLong();
+            int crc = buffer.getInt();
+            if (payloadLength <= 0 || payloadLength > buffer.remaining()) {
+                break;
+            }
+            byte[] payload = new byte[payloadLength];
+            buffer.get(payload);
+            if (crc != checksum(generation, payload)) {
+                break;
+            }
+            if (generation != storedHost.generation) {
+                recordCount++;
+                validLength = buffer.position();
+                continue;
+            }
+            try {
+                StoredHostState.PairState pairState =
+                        StoredHostState.parsePairState(keyHelper.decryptToBytes(payload));
+                // Only Pairs that are part of the snapshot can be updated.
+                if (latestPairStates.containsKey(pairState.pairId)) {
+                    latestPairStates.put(pairState.pairId, pairState);
+                }
+            } catch (RelayException e) {
+                if (BuildConfig.DEBUG) {
+                    Log.w("MTE", "Skipping unreadable pair journal record in " + journalFile.getName());
+                }
+                break;
+            }
+            recordCount++;
+            validLength = buffer.position();
+        }
+        if (validLength < buffer.limit()) {
+            cutOff(validLength);
+        }
+        StoredHostState replayed = new StoredHostState(storedHost.clientId,
+                new ArrayList<>(latestPairStates.values()));
+        replayed.generation = storedHost.generation;
+        return replayed;
+    }
+
+    // Drop a torn or corrupt tail, e.g. from a crash during an append.
+    private void cutOff(int validLength) {
+        if (BuildConfig.DEBUG) {
+            Log.w("MTE", "Dropping damaged tail of pair journal " + journalFile.getName()
+                    + " after " + recordCount + " records");
+        }
+        try (RandomAccessFile journal = new RandomAccessFile(journalFile, "rw")) {
+            journal.setLength(validLength);
+            journal.getFD().sync();
+        } catch (IOException e) {
+            needsCompaction = true;
+        }
+    }
+
+    void truncate() {
+        recordCount = 0;
+        needsCompaction = false;
+        if (journalFile.exists() && !journalFile.delete()) {
+            throw new RelayException(getClass().getSimpleName(),
+                    "Unable to truncate pair journal " + journalFile.getName());
+        }
+    }
+
+    private byte[] readJournal() throws IOException {
+        try (FileInputStream inputStream = new FileInputStream(journalFile)) {
+            byte[] journalBytes = new byte[(int) journalFile.length()];
+            int offset = 0;
+            int bytesRead;
+            while (offset < journalBytes.length
+                    && (bytesRead = inputStream.read(journalBytes, offset, journalBytes.length - offset)) != -1) {
+                offset += bytesRead;
+            }
+            return offset == journalBytes.length ? journalBytes : Arrays.copyOf(journalBytes, offset);
+        }
+    }
+
+    private static byte[] toRecord(long generation, byte[] payload) {
+        ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + payload.length);
+        record.putInt(payload.length)
+                .putLong(generation)
+                .putInt(checksum(generation, payload))
+                .put(payload);
+        return record.array();
+    }
+
+    private static int checksum(long generation, byte[] payload) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(ByteBuffer.allocate(8).putLong(generation).array());
+        crc32.update(payload);
+        return (int) crc32.getValue();
+    }
+}
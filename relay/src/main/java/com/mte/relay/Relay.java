@@ -24,7 +24,9 @@
 
 package com.mte.relay;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.util.Log;
 
 import com.android.volley.Request;
@@ -32,19 +34,27 @@ import com.eclypses.mte.MteBase;
 
 import org.json.JSONObject;
 
-import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Relay {
 
     private static Relay instance;
-    private final Map<String, Host> pairedHosts = new HashMap<>();
+    private final Map<String, Host> pairedHosts = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<Host>> pendingHosts = new ConcurrentHashMap<>();
     private final Context ctx;
     private final RelayResponseListener relayResponseListener;
+    private final ComponentCallbacks2 componentCallbacks;
 
     public static Relay getInstance(Context context, RelayResponseListener listener) {
         if (instance == null) {
@@ -59,6 +69,43 @@ public class Relay {
         }
         ctx = context;
         relayResponseListener = listener;
+
+        // Generate keypairs for the first pairing while the app is still starting up.
+        PairReserve.refill();
+
+        // Write any unsaved pair states when the app's UI is hidden, the process may not come back.
+        // The writes go to the control pool, these callbacks arrive on the main thread.
+        componentCallbacks = new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+                    RelayExecutors.control().execute(Relay.this::flushStates);
+                }
+            }
+
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {
+            }
+
+            @Override
+            public void onLowMemory() {
+                RelayExecutors.control().execute(Relay.this::flushStates);
+            }
+        };
+        ctx.getApplicationContext().registerComponentCallbacks(componentCallbacks);
+    }
+
+    // Release this Relay: stop listening for app memory events and autoscaling pair pools,
+    // and write any unsaved pair states. getInstance() builds a new Relay afterwards.
+    public void close() {
+        ctx.getApplicationContext().unregisterComponentCallbacks(componentCallbacks);
+        if (instance == this) {
+            instance = null;
+        }
+        for (Host host : pairedHosts.values()) {
+            host.setAutoscalePool(false);
+        }
+        RelayExecutors.control().execute(this::flushStates);
     }
 
     public <T> void addToMteRequestQueue(Request<T> req, String[] headersToEncrypt, RelayDataTaskListener listener) {
@@ -66,14 +113,16 @@ public class Relay {
     }
 
     public <T> void addToMteRequestQueue(Request<T> req, String[] headersToEncrypt, String pathnamePrefix, RelayDataTaskListener listener) {
-        String relayServerPath = null;
+        addToMteRequestQueue(req, headersToEncrypt, pathnamePrefix, listener, new RelayCall());
+    }
+
+    private <T> void addToMteRequestQueue(Request<T> req, String[] headersToEncrypt, String pathnamePrefix, RelayDataTaskListener listener, RelayCall call) {
+        String relayServerPath;
         try {
-            URL relayServerUrl = new URL(req.getUrl());
-            String protocol = relayServerUrl.getProtocol();
-            String authority = relayServerUrl.getAuthority();
-            relayServerPath = protocol + "://" + authority;
+            relayServerPath = getRelayServerPath(req);
         } catch (MalformedURLException e) {
             listener.onError(e.getMessage(), null);
+            return;
         }
         getHost(relayServerPath, new InstantiateHostCallback() {
             @Override
@@ -82,11 +131,118 @@ public class Relay {
 
             @Override
             public void hostInstantiated(String hostUrl, Host host) {
-                host.sendRequest(req, headersToEncrypt, pathnamePrefix, listener);
+                host.sendRequest(req, headersToEncrypt, pathnamePrefix, listener, call);
             }
         });
     }
 
+    // Send a batch of requests, e.g. the calls a screen makes when it loads. Each Host is
+    // resolved once for the whole batch, then the requests encode in parallel on whichever
+    // Pairs are free. Results arrive in completion order.
+    //
+    // The batch is queued whole or not at all. When the request queue has no room for all of
+    // it, every request fails with the queue full error and none is sent. The requests for one
+    // relay server are queued together once its Host is ready, so a batch spanning servers can
+    // still have one server's requests refused while another's are sent; each refused request
+    // is reported with the queue full error.
+    public void addAllToMteRequestQueue(List<? extends Request<?>> requests,
+                                        String[] headersToEncrypt,
+                                        String pathnamePrefix,
+                                        RelayBatchListener listener) {
+        List<CompletableFuture<RelayResponse>> futures =
+                addAllToMteRequestQueue(requests, headersToEncrypt, pathnamePrefix, 0);
+        if (futures.isEmpty()) {
+            listener.onBatchComplete();
+            return;
+        }
+        AtomicInteger remaining = new AtomicInteger(futures.size());
+        for (int i = 0; i < futures.size(); i++) {
+            int index = i;
+            futures.get(i).whenComplete((response, throwable) -> {
+                synchronized (listener) {
+                    if (throwable == null) {
+                        listener.onResponse(index, response);
+                    } else if (throwable instanceof RelayResponseException) {
+                        listener.onError(index, throwable.getCause().getMessage(),
+                                ((RelayResponseException) throwable).responseHeaders);
+                    } else {
+                        listener.onError(index, throwable.toString(), null);
+                    }
+                    if (remaining.decrementAndGet() == 0) {
+                        listener.onBatchComplete();
+                    }
+                }
+            });
+        }
+    }
+
+    // The futures are in the order of the requests. Use CompletableFuture.allOf or anyOf to
+    // wait on them together.
+    public List<CompletableFuture<RelayResponse>> addAllToMteRequestQueue(List<? extends Request<?>> requests,
+                                                                         String[] headersToEncrypt,
+                                                                         String pathnamePrefix,
+                                                                         long timeoutMs) {
+        List<CompletableFuture<RelayResponse>> futures = new ArrayList<>(requests.size());
+        Map<String, List<Integer>> requestsByHost = new LinkedHashMap<>();
+        List<RelayCall> calls = new ArrayList<>(requests.size());
+        if (requests.size() > RelayExecutors.requestQueueRemaining()) {
+            for (int i = 0; i < requests.size(); i++) {
+                CompletableFuture<RelayResponse> future = new CompletableFuture<>();
+                future.completeExceptionally(new RelayResponseException(Host.REQUEST_QUEUE_FULL, null));
+                futures.add(future);
+            }
+            return futures;
+        }
+        for (int i = 0; i < requests.size(); i++) {
+            RelayCall call = new RelayCall();
+            calls.add(call);
+            CompletableFuture<RelayResponse> future = newRelayFuture(call, timeoutMs);
+            futures.add(future);
+            try {
+                String relayServerPath = getRelayServerPath(requests.get(i));
+                List<Integer> hostRequests = requestsByHost.get(relayServerPath);
+                if (hostRequests == null) {
+                    hostRequests = new ArrayList<>();
+                    requestsByHost.put(relayServerPath, hostRequests);
+                }
+                hostRequests.add(i);
+            } catch (MalformedURLException e) {
+                future.completeExceptionally(new RelayResponseException(e.getMessage(), null));
+            }
+        }
+        for (Map.Entry<String, List<Integer>> hostRequests : requestsByHost.entrySet()) {
+            getHost(hostRequests.getKey(), new InstantiateHostCallback() {
+                @Override
+                public void onError(String message) {
+                    for (int index : hostRequests.getValue()) {
+                        futures.get(index).completeExceptionally(new RelayResponseException(message, null));
+                    }
+                }
+
+                @Override
+                public void hostInstantiated(String hostUrl, Host host) {
+                    List<Request<?>> hostReqs = new ArrayList<>(hostRequests.getValue().size());
+                    List<RelayFutureListener> listeners = new ArrayList<>(hostReqs.size());
+                    List<RelayCall> hostCalls = new ArrayList<>(hostReqs.size());
+                    for (int index : hostRequests.getValue()) {
+                        hostReqs.add(requests.get(index));
+                        listeners.add(new RelayFutureListener(futures.get(index)));
+                        hostCalls.add(calls.get(index));
+                    }
+                    host.sendRequests(hostReqs, headersToEncrypt, pathnamePrefix, listeners, hostCalls);
+                }
+            });
+        }
+        return futures;
+    }
+
+    private static String getRelayServerPath(Request<?> req) throws MalformedURLException {
+        URL relayServerUrl = new URL(req.getUrl());
+        String protocol = relayServerUrl.getProtocol();
+        String authority = relayServerUrl.getAuthority();
+        return protocol + "://" + authority;
+    }
+
     public void uploadFile(RelayFileRequestProperties reqProperties,
                            String route,
                            RelayDataTaskListener listener,
@@ -99,14 +255,43 @@ public class Relay {
                            String pathnamePrefix,
                            RelayDataTaskListener listener,
                            RelayStreamCompletionCallback completionCallback) {
+        uploadFile(reqProperties, route, pathnamePrefix, listener, completionCallback, new RelayCall());
+    }
+
+    private void uploadFile(RelayFileRequestProperties reqProperties,
+                            String route,
+                            String pathnamePrefix,
+                            RelayDataTaskListener listener,
+                            RelayStreamCompletionCallback completionCallback,
+                            RelayCall call) {
+
+        getHost(reqProperties.serverPath, new InstantiateHostCallback() {
+            @Override
+            public void onError(String message) { listener.onError(message, null); }
+
+            @Override
+            public void hostInstantiated(String hostUrl, Host host) {
+                host.uploadFile(reqProperties, route, pathnamePrefix, listener, completionCallback, call);
+            }
+        });
+    }
 
+    // EXPERIMENTAL: Upload reqProperties.file in parts, in parallel across several pairs and
+    // connections. The relay server must support the x-mte-upload-* protocol described in
+    // MultipartUploadHelper, which released relay servers don't yet. The API may change.
+    public void uploadFileMultipart(RelayFileRequestProperties reqProperties,
+                                    String route,
+                                    String pathnamePrefix,
+                                    RelayDataTaskListener listener,
+                                    RelayStreamCompletionCallback completionCallback) {
+        RelayCall call = new RelayCall();
         getHost(reqProperties.serverPath, new InstantiateHostCallback() {
             @Override
             public void onError(String message) { listener.onError(message, null); }
 
             @Override
             public void hostInstantiated(String hostUrl, Host host) {
-                host.uploadFile(reqProperties, route, pathnamePrefix, listener, completionCallback);
+                host.uploadFileMultipart(reqProperties, route, pathnamePrefix, listener, completionCallback, call);
             }
         });
     }
@@ -116,39 +301,121 @@ public class Relay {
     }
 
     public void downloadFile(RelayFileRequestProperties reqProperties, String pathnamePrefix, RelayDataTaskListener listener) {
+        downloadFile(reqProperties, pathnamePrefix, listener, new RelayCall());
+    }
+
+    private void downloadFile(RelayFileRequestProperties reqProperties, String pathnamePrefix, RelayDataTaskListener listener, RelayCall call) {
         getHost(reqProperties.serverPath, new InstantiateHostCallback() {
             @Override
             public void onError(String message) { listener.onError(message, null); }
 
             @Override
             public void hostInstantiated(String hostUrl, Host host) {
-                try {
-                    host.downloadFile(reqProperties, pathnamePrefix, listener);
-                } catch (IOException e) {
-                    listener.onError(e.getMessage(), null);
-                }
+                host.downloadFile(reqProperties, pathnamePrefix, listener, call);
+            }
+        });
+    }
+
+    // CompletableFuture variants of the calls above, completed on the thread that delivers the
+    // response. Cancelling the future, or missing a deadline of timeoutMs (0 for none), aborts
+    // the Volley request or HttpURLConnection and hands its Pair back.
+    public <T> CompletableFuture<RelayResponse> addToMteRequestQueue(Request<T> req, String[] headersToEncrypt) {
+        return addToMteRequestQueue(req, headersToEncrypt, null, 0);
+    }
+
+    public <T> CompletableFuture<RelayResponse> addToMteRequestQueue(Request<T> req, String[] headersToEncrypt, String pathnamePrefix, long timeoutMs) {
+        RelayCall call = new RelayCall();
+        CompletableFuture<RelayResponse> future = newRelayFuture(call, timeoutMs);
+        addToMteRequestQueue(req, headersToEncrypt, pathnamePrefix, new RelayFutureListener(future), call);
+        return future;
+    }
+
+    public CompletableFuture<RelayResponse> uploadFile(RelayFileRequestProperties reqProperties,
+                                                       String route,
+                                                       String pathnamePrefix,
+                                                       RelayStreamCompletionCallback completionCallback,
+                                                       long timeoutMs) {
+        RelayCall call = new RelayCall();
+        CompletableFuture<RelayResponse> future = newRelayFuture(call, timeoutMs);
+        uploadFile(reqProperties, route, pathnamePrefix, new RelayFutureListener(future), completionCallback, call);
+        return future;
+    }
+
+    public CompletableFuture<RelayResponse> downloadFile(RelayFileRequestProperties reqProperties, String pathnamePrefix, long timeoutMs) {
+        RelayCall call = new RelayCall();
+        CompletableFuture<RelayResponse> future = newRelayFuture(call, timeoutMs);
+        downloadFile(reqProperties, pathnamePrefix, new RelayFutureListener(future), call);
+        return future;
+    }
+
+    private CompletableFuture<RelayResponse> newRelayFuture(RelayCall call, long timeoutMs) {
+        CompletableFuture<RelayResponse> future = new CompletableFuture<>();
+        // CompletableFuture.orTimeout needs API 31, so schedule the deadline here.
+        ScheduledFuture<?> deadline = timeoutMs <= 0 ? null : RelayExecutors.scheduler().schedule(
+                () -> future.completeExceptionally(
+                        new TimeoutException("Relay call timed out after " + timeoutMs + "ms")),
+                timeoutMs, TimeUnit.MILLISECONDS);
+        future.whenComplete((response, throwable) -> {
+            if (deadline != null) {
+                deadline.cancel(false);
+            }
+            // Cancelled, timed out or failed: stop whatever is still in flight.
+            if (throwable != null) {
+                call.cancel();
             }
         });
+        return future;
     }
 
+    // Single flight: while a Host is pairing, every other caller for it waits on the same
+    // pairing instead of starting its own.
     private void getHost(String hostUrl, InstantiateHostCallback callback) {
-        final Host[] hostToReturn = { pairedHosts.get(hostUrl) };
-        if (hostToReturn[0] == null) {
-            new Host(ctx, hostUrl, new InstantiateHostCallback() {
-                @Override
-                public void onError(String message) {
+        Host pairedHost = pairedHosts.get(hostUrl);
+        if (pairedHost != null) {
+            callback.hostInstantiated(hostUrl, pairedHost);
+            return;
+        }
+        CompletableFuture<Host> newHost = new CompletableFuture<>();
+        CompletableFuture<Host> pendingHost = pendingHosts.putIfAbsent(hostUrl, newHost);
+        if (pendingHost == null) {
+            pendingHost = newHost;
+            instantiateHost(hostUrl, newHost);
+        }
+        pendingHost.whenComplete((host, throwable) -> {
+            if (throwable == null) {
+                callback.hostInstantiated(hostUrl, host);
+            } else {
+                callback.onError(throwable.getCause() != null
+                        ? throwable.getCause().getMessage() : throwable.toString());
+            }
+        });
+    }
+
+    private void instantiateHost(String hostUrl, CompletableFuture<Host> newHost) {
+        // It may have finished pairing between the lookup and claiming the pending slot.
+        Host pairedHost = pairedHosts.get(hostUrl);
+        if (pairedHost != null) {
+            pendingHosts.remove(hostUrl, newHost);
+            newHost.complete(pairedHost);
+            return;
+        }
+        new Host(ctx, hostUrl, new InstantiateHostCallback() {
+            @Override
+            public void onError(String message) {
+                // Forget the failed attempt, so the next caller tries again.
+                pendingHosts.remove(hostUrl, newHost);
+                if (newHost.completeExceptionally(new RelayException(getClass().getSimpleName(), message))) {
                     relayResponseListener.onCompletion(false, message);
                 }
+            }
 
-                @Override
-                public void hostInstantiated(String hostUrl, Host host) {
-                    pairedHosts.put(hostUrl, host);
-                    callback.hostInstantiated(hostUrl, host);
-                }
-            });
-        } else {
-            callback.hostInstantiated(hostUrl, hostToReturn[0]);
-        }
+            @Override
+            public void hostInstantiated(String hostUrl, Host host) {
+                pairedHosts.put(hostUrl, host);
+                pendingHosts.remove(hostUrl, newHost);
+                newHost.complete(host);
+            }
+        });
     }
 
     public void rePairWithRelayServer(String serverUrl) {
@@ -186,23 +453,50 @@ public class Relay {
             setStreamChunkSize(newStreamChunkSize);
             responseMessage = responseMessage + "\nRelaySetting.streamChunkSize adjusted to " + newStreamChunkSize;
         }
+        boolean pairPoolSizeChanged = false;
         if (newPairPoolSize != 0 && newPairPoolSize != getPairPoolSizeSetting()) {
             setPairPoolSize(newPairPoolSize);
-            responseMessage = responseMessage + "\nRelaySetting.pairPoolSize adjusted to " + newPairPoolSize;
+            pairPoolSizeChanged = true;
         }
         if (persistPairs != getPersistPairsSetting()) {
             setPersistPairs(persistPairs);
             responseMessage = responseMessage + "\nRelaySetting.persistPairs adjusted to " + persistPairs;
         }
-        if (responseMessage.isEmpty()) {
-            responseMessage = "\nNo Relay Settings were changed based on arguments and existing RelaySettings";
-        } else {
+        if (!responseMessage.isEmpty()) {
+            if (pairPoolSizeChanged) {
+                responseMessage = responseMessage + "\nRelaySetting.pairPoolSize adjusted to " + newPairPoolSize;
+            }
             rePairWithRelayServer(serverUrl);
             responseMessage = responseMessage + "\nAlso, Relay was Re-Paired with " + serverUrl ;
+        } else if (pairPoolSizeChanged) {
+            // Only the pool size changed, so resize the live pool instead of re-pairing.
+            responseMessage = "\nRelaySetting.pairPoolSize adjusted to " + newPairPoolSize;
+            Host host = pairedHosts.get(serverUrl);
+            if (host != null) {
+                resizePairPool(host, newPairPoolSize);
+                responseMessage = responseMessage + "\nThe pair pool of " + serverUrl + " is being resized";
+            }
+        } else {
+            responseMessage = "\nNo Relay Settings were changed based on arguments and existing RelaySettings";
         }
         return responseMessage;
     }
 
+    private void resizePairPool(Host host, int newPairPoolSize) {
+        host.resizePool(newPairPoolSize, new InstantiateHostCallback() {
+            @Override
+            public void onError(String message) {
+                relayResponseListener.onCompletion(false, message);
+            }
+
+            @Override
+            public void hostInstantiated(String hostUrl, Host host) {
+                relayResponseListener.onCompletion(true,
+                        "Resized pair pool of " + hostUrl + " to " + host.getPoolSize());
+            }
+        });
+    }
+
     public int getStreamChunkSizeSetting() {
         return RelaySettings.streamChunkSize;
     }
@@ -215,8 +509,13 @@ public class Relay {
         return RelaySettings.pairPoolSize;
     }
 
+    // Paired hosts take the new size the next time they pair, or right away through
+    // adjustRelaySettings().
     public void setPairPoolSize(int newSize) {
         RelaySettings.pairPoolSize = newSize;
+        for (Host host : pairedHosts.values()) {
+            host.setTargetPoolSize(newSize);
+        }
     }
 
     public boolean getPersistPairsSetting() {
@@ -227,6 +526,96 @@ public class Relay {
         RelaySettings.persistPairs = bool;
     }
 
+    public int getRequestThreadsSetting() {
+        return RelaySettings.requestThreads;
+    }
+
+    public void setRequestThreads(int threads) {
+        RelaySettings.requestThreads = Math.max(1, threads);
+        RelayExecutors.setRequestThreads(RelaySettings.requestThreads);
+    }
+
+    public int getRequestQueueCapacitySetting() {
+        return RelaySettings.requestQueueCapacity;
+    }
+
+    // Applies from the next start of the relay, the running queue keeps its capacity.
+    public void setRequestQueueCapacity(int capacity) {
+        RelaySettings.requestQueueCapacity = Math.max(1, capacity);
+    }
+
+    public int getPairReserveSizeSetting() {
+        return RelaySettings.pairReserveSize;
+    }
+
+    public void setPairReserveSize(int newSize) {
+        RelaySettings.pairReserveSize = newSize;
+        PairReserve.trim();
+        PairReserve.refill();
+    }
+
+    public boolean getAutoscalePairPoolSetting() {
+        return RelaySettings.autoscalePairPool;
+    }
+
+    public void setAutoscalePairPool(boolean autoscale) {
+        RelaySettings.autoscalePairPool = autoscale;
+        for (Host host : pairedHosts.values()) {
+            host.setAutoscalePool(autoscale);
+        }
+    }
+
+    // Bounds for the autoscaled pool, and the average lease wait that makes it grow.
+    public void setPairPoolAutoscaleLimits(int minSize, int maxSize, long leaseWaitGrowThresholdMs) {
+        RelaySettings.pairPoolMinSize = Math.max(1, minSize);
+        RelaySettings.pairPoolMaxSize = Math.max(RelaySettings.pairPoolMinSize, maxSize);
+        RelaySettings.leaseWaitGrowThresholdMs = leaseWaitGrowThresholdMs;
+    }
+
+    public long getMultipartUploadPartSizeSetting() {
+        return RelaySettings.multipartUploadPartSize;
+    }
+
+    public void setMultipartUploadPartSize(long partSize) {
+        RelaySettings.multipartUploadPartSize = partSize;
+    }
+
+    public int getMultipartUploadParallelismSetting() {
+        return RelaySettings.multipartUploadParallelism;
+    }
+
+    public void setMultipartUploadParallelism(int parallelism) {
+        RelaySettings.multipartUploadParallelism = Math.max(1, parallelism);
+    }
+
+    public boolean getLiveMteStateSetting() {
+        return RelaySettings.liveMteState;
+    }
+
+    // Applies to Pairs created or restored after the change.
+    public void setLiveMteState(boolean bool) {
+        RelaySettings.liveMteState = bool;
+    }
+
+    // Write any pair states that are still waiting for a deferred write.
+    public void flushStates() {
+        for (Host host : pairedHosts.values()) {
+            host.flushStates();
+        }
+    }
+
+    // How long the last pairing with serverUrl took, from Kyber key generation until the Pairs
+    // were ready, or -1 if it has not paired in this session.
+    public long getPairingTimeMs(String serverUrl) {
+        Host host = pairedHosts.get(serverUrl);
+        return host == null ? -1 : host.getPairingTimeMs();
+    }
+
+    public long getKeyGenerationTimeMs(String serverUrl) {
+        Host host = pairedHosts.get(serverUrl);
+        return host == null ? -1 : host.getKeyGenerationTimeMs();
+    }
+
     public String[] getHostList() {
         return pairedHosts.keySet().toArray(new String[0]);
     }
@@ -0,0 +1,168 @@
+// The MIT License (MIT)
+//
+// Copyright (c) Eclypses, Inc.
+//
+// All rights reserved.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+package com.mte.relay;
+
+import com.android.volley.Request;
+
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// Handle on one relay call, so it can be cancelled wherever it currently is: waiting for a
+// lease, in Volley, or on an HttpURLConnection.
+// A Volley request that is cancelled never calls back, so the call also owns the release of
+// its leased Pair. Whoever gets there first, the response callback or cancel(), releases it.
+class RelayCall {
+
+    private boolean cancelled = false;
+    private boolean delivering = false;
+    private Request<?> request;
+    private HttpURLConnection connection;
+    // Connections of the parts of a multipart upload, several are open at once.
+    private final Set<HttpURLConnection> partConnections = new HashSet<>();
+    private Runnable leaseRelease;
+
+    synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    // Returns false, having released the lease, if the call was already cancelled.
+    boolean setLease(Runnable release) {
+        synchronized (this) {
+            if (!cancelled) {
+                leaseRelease = release;
+                delivering = false;
+                return true;
+            }
+        }
+        release.run();
+        return false;
+    }
+
+    void setRequest(Request<?> request) {
+        synchronized (this) {
+            this.request = request;
+            if (!cancelled) {
+                return;
+            }
+        }
+        request.cancel();
+    }
+
+    void setConnection(HttpURLConnection connection) {
+        synchronized (this) {
+            this.connection = connection;
+            if (!cancelled) {
+                return;
+            }
+        }
+        connection.disconnect();
+    }
+
+    void addPartConnection(HttpURLConnection connection) {
+        synchronized (this) {
+            if (!cancelled) {
+                partConnections.add(connection);
+                return;
+            }
+        }
+        connection.disconnect();
+    }
+
+    synchronized void removePartConnection(HttpURLConnection connection) {
+        partConnections.remove(connection);
+    }
+
+    // Called when a response arrives. Returns false if the call was cancelled, in which case
+    // the lease has already been released.
+    synchronized boolean startDelivery() {
+        if (cancelled) {
+            return false;
+        }
+        delivering = true;
+        return true;
+    }
+
+    // Take over the release of the lease, e.g. to hand the Pair back only once the response
+    // has been dealt with. A cancel() meanwhile leaves it to the caller.
+    Runnable takeLease() {
+        Runnable release;
+        synchronized (this) {
+            release = leaseRelease;
+            leaseRelease = null;
+            request = null;
+        }
+        return release != null ? release : () -> { };
+    }
+
+    void releaseLease() {
+        Runnable release;
+        synchronized (this) {
+            release = leaseRelease;
+            leaseRelease = null;
+            request = null;
+        }
+        if (release != null) {
+            release.run();
+        }
+    }
+
+    void cancel() {
+        Request<?> cancelRequest;
+        HttpURLConnection cancelConnection;
+        List<HttpURLConnection> cancelPartConnections;
+        Runnable release = null;
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            cancelRequest = request;
+            cancelConnection = connection;
+            cancelPartConnections = new ArrayList<>(partConnections);
+            partConnections.clear();
+            // A response being delivered releases the lease itself.
+            if (!delivering) {
+                release = leaseRelease;
+                leaseRelease = null;
+            }
+        }
+        if (cancelRequest != null) {
+            cancelRequest.cancel();
+        }
+        // Aborts a file transfer. Its thread fails and returns the Pair on the way out.
+        if (cancelConnection != null) {
+            cancelConnection.disconnect();
+        }
+        for (HttpURLConnection partConnection : cancelPartConnections) {
+            partConnection.disconnect();
+        }
+        if (release != null) {
+            release.run();
+        }
+    }
+}
@@ -0,0 +1,207 @@
+// The MIT License (MIT)
+//
+// Copyright (c) Eclypses, Inc.
+//
+// All rights reserved.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+package com.mte.relay;
+
+import android.os.Process;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Shared thread pools for all relay work, so the number of threads stays flat however many
+// requests are queued.
+//  - request: sending requests and file transfers. Its threads may block waiting for pairing
+//    or for a Pair lease. The queue is bounded; when it is full, submissions are rejected and
+//    the caller reports the error to its listener.
+//  - stream: work that has to run alongside a request thread that already holds a Pair, such
+//    as feeding an upload's piped stream. It never waits for pairing or a lease, so it always
+//    finishes. At most one task per request thread, so it is sized like the request pool.
+//  - control: storage loading and pairing. These must never queue behind requests waiting
+//    for pairing, so they get their own small pool.
+//  - scheduler: one thread for timers, deferred state writes and request deadlines. Tasks on
+//    it must be short.
+//  - background: one low priority thread for work nobody is waiting on, such as refilling
+//    the Kyber keypair reserve.
+class RelayExecutors {
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static ThreadPoolExecutor requestExecutor;
+    private static ThreadPoolExecutor streamExecutor;
+    private static ThreadPoolExecutor controlExecutor;
+    private static ScheduledExecutorService scheduler;
+    private static ThreadPoolExecutor backgroundExecutor;
+
+    static synchronized ExecutorService request() {
+        if (requestExecutor == null) {
+            requestExecutor = newExecutor("MteRelay-Request",
+                    RelaySettings.requestThreads,
+                    new ArrayBlockingQueue<>(RelaySettings.requestQueueCapacity));
+        }
+        return requestExecutor;
+    }
+
+    // Room left in the request queue. Tasks that start a new thread instead of queueing are not
+    // counted, so this is a lower bound.
+    static synchronized int requestQueueRemaining() {
+        request();
+        return requestExecutor.getQueue().remainingCapacity();
+    }
+
+    // Queue all of tasks on the request pool, or none of them when its queue has no room for
+    // all. Returns how many were queued, from the front of the list.
+    static synchronized int executeAllRequests(List<Runnable> tasks) {
+        request();
+        return executeAll(requestExecutor, tasks);
+    }
+
+    // The room check and the submissions are not atomic against single execute() calls from
+    // other threads. One of those can still take the last slots, then the tasks after it are
+    // rejected and the count stops short of the whole list.
+    static int executeAll(ThreadPoolExecutor executor, List<Runnable> tasks) {
+        if (executor.getQueue().remainingCapacity() < tasks.size()) {
+            return 0;
+        }
+        int queued = 0;
+        try {
+            for (Runnable task : tasks) {
+                executor.execute(task);
+                queued++;
+            }
+        } catch (RejectedExecutionException e) {
+            // Fall through with the count so far.
+        }
+        return queued;
+    }
+
+    static synchronized ExecutorService stream() {
+        if (streamExecutor == null) {
+            streamExecutor = newExecutor("MteRelay-Stream",
+                    RelaySettings.requestThreads,
+                    new LinkedBlockingQueue<>());
+        }
+        return streamExecutor;
+    }
+
+    static synchronized ExecutorService control() {
+        if (controlExecutor == null) {
+            controlExecutor = newExecutor("MteRelay-Control",
+                    2,
+                    new LinkedBlockingQueue<>());
+        }
+        return controlExecutor;
+    }
+
+    static synchronized ScheduledExecutorService scheduler() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(
+                    new NamedThreadFactory("MteRelay-Scheduler"));
+        }
+        return scheduler;
+    }
+
+    static synchronized ExecutorService background() {
+        if (backgroundExecutor == null) {
+            backgroundExecutor = new ThreadPoolExecutor(1, 1,
+                    KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(),
+                    new BackgroundThreadFactory("MteRelay-Background"));
+            backgroundExecutor.allowCoreThreadTimeOut(true);
+        }
+        return backgroundExecutor;
+    }
+
+    // Resize the running pools. The request queue capacity only applies to a pool created
+    // after the change.
+    static synchronized void setRequestThreads(int threads) {
+        // ThreadPoolExecutor rejects sizes below one.
+        threads = Math.max(1, threads);
+        for (ThreadPoolExecutor executor : new ThreadPoolExecutor[]{requestExecutor, streamExecutor}) {
+            if (executor == null) {
+                continue;
+            }
+            if (threads > executor.getMaximumPoolSize()) {
+                executor.setMaximumPoolSize(threads);
+                executor.setCorePoolSize(threads);
+            } else {
+                executor.setCorePoolSize(threads);
+                executor.setMaximumPoolSize(threads);
+            }
+        }
+    }
+
+    private static ThreadPoolExecutor newExecutor(String name, int threads,
+                                                  BlockingQueue<Runnable> queue) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                queue,
+                new NamedThreadFactory(name),
+                new ThreadPoolExecutor.AbortPolicy());
+        // Idle relays keep no threads around.
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+
+        private final String name;
+        private final AtomicInteger threadCount = new AtomicInteger(1);
+
+        NamedThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, name + "-" + threadCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    private static class BackgroundThreadFactory extends NamedThreadFactory {
+
+        BackgroundThreadFactory(String name) {
+            super(name);
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            return super.newThread(() -> {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                runnable.run();
+            });
+        }
+    }
+}
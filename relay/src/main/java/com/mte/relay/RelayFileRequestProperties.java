@@ -42,7 +42,7 @@ public class RelayFileRequestProperties {
 
     public RelayFileRequestProperties(File file,
                                       String serverPath,
-                                      Map origHeaders,
+                                      Map<String, String> origHeaders,
                                       String[] headersToEncrypt,
                                       RelayStreamCallback relayStreamCallback) {
         this.file = file;
@@ -52,6 +52,14 @@ public class RelayFileRequestProperties {
         this.relayStreamCallback = relayStreamCallback;
     }
 
+    // Upload the file as it is, the relay reads it itself.
+    public RelayFileRequestProperties(File file,
+                                      String serverPath,
+                                      Map<String, String> origHeaders,
+                                      String[] headersToEncrypt) {
+        this(file, serverPath, origHeaders, headersToEncrypt, null);
+    }
+
     public RelayFileRequestProperties(String filename,
                                       String serverPath,
                                       String route,
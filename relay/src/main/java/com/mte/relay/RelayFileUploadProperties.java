@@ -13,6 +13,9 @@ public class RelayFileUploadProperties {
     Map<String,String> origHeaders;
     RelayOptions relayOptions;
     RelayStreamCallback relayStreamCallback;
+    // The range of fileToUpload to send, for one part of a multipart upload. -1 sends it all.
+    long partOffset = 0;
+    long partLength = -1;
 
     public RelayFileUploadProperties(String hostUrl,
                                      String route,
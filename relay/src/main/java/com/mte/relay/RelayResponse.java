@@ -0,0 +1,50 @@
+// The MIT License (MIT)
+//
+// Copyright (c) Eclypses, Inc.
+//
+// All rights reserved.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+package com.mte.relay;
+
+import org.json.JSONObject;
+
+import java.util.List;
+import java.util.Map;
+
+// Result of a relay call made through one of the CompletableFuture methods on Relay.
+// Requests carry the decoded response bytes, file transfers the JSON summary.
+public class RelayResponse {
+    public final byte[] responseBytes;
+    public final JSONObject responseJson;
+    public final Map<String, List<String>> responseHeaders;
+
+    public RelayResponse(byte[] responseBytes, Map<String, List<String>> responseHeaders) {
+        this.responseBytes = responseBytes;
+        this.responseJson = null;
+        this.responseHeaders = responseHeaders;
+    }
+
+    public RelayResponse(JSONObject responseJson, Map<String, List<String>> responseHeaders) {
+        this.responseBytes = null;
+        this.responseJson = responseJson;
+        this.responseHeaders = responseHeaders;
+    }
+}
@@ -32,5 +32,31 @@ class RelaySettings {
     static String licenseKey = "9eHOohOm/GwY01xbvNTL9B+1";
     static boolean persistPairs = false;
     static int pairPoolSize = 3;
+    // Keep MTE state in the native encoder/decoder and only snapshot it when it is persisted,
+    // instead of restoring and saving it around every call.
+    static boolean liveMteState = true;
+    // Pair states are written once no state change has arrived for stateFlushDelayMs, and at
+    // the latest stateFlushMaxDelayMs after the first unsaved change.
+    static long stateFlushDelayMs = 500;
+    static long stateFlushMaxDelayMs = 5000;
+    // Number of per-pair journal records kept before they are compacted into a full snapshot.
+    static int pairJournalCompactionRecords = 128;
+    // Threads shared by all relay requests and file transfers, and how many requests may wait
+    // for one before new requests are refused.
+    static int requestThreads = Math.max(2, Runtime.getRuntime().availableProcessors());
+    static int requestQueueCapacity = 256;
+    // New Pairs kept with their Kyber keypairs generated ahead of pairing, 0 to disable.
+    static int pairReserveSize = 3;
+    // Optional autoscaling of each Host's pair pool, see PairPoolAutoscaler.
+    static boolean autoscalePairPool = false;
+    static int pairPoolMinSize = 1;
+    static int pairPoolMaxSize = 16;
+    static long leaseWaitGrowThresholdMs = 20;
+    static long pairPoolShrinkIdleMs = 60000;
+    static long autoscaleIntervalMs = 5000;
+    // Multipart uploads, see MultipartUploadHelper.
+    static long multipartUploadPartSize = 8 * 1024 * 1024;
+    static int multipartUploadParallelism = 4;
+    static int multipartUploadPartRetries = 2;
 
 }
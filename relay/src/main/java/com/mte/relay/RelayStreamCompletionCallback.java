@@ -2,4 +2,12 @@ package com.mte.relay;
 
 public interface RelayStreamCompletionCallback {
     void onProgressUpdate(int bytesCompleted, int totalBytes);
+
+    // Progress for transfers of any size, this is the one the relay calls. Override it to get
+    // 64-bit counts; by default it passes them on to the int version, capped at
+    // Integer.MAX_VALUE. totalBytes is -1 when the length is unknown.
+    default void onProgressUpdate(long bytesCompleted, long totalBytes) {
+        onProgressUpdate((int) Math.min(bytesCompleted, Integer.MAX_VALUE),
+                (int) Math.min(totalBytes, Integer.MAX_VALUE));
+    }
 }
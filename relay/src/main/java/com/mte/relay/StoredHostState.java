@@ -0,0 +1,208 @@
+// The MIT License (MIT)
+//
+// Copyright (c) Eclypses, Inc.
+//
+// All rights reserved.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+package com.mte.relay;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+
+// The stored state of one Host: its clientId and, when pairs are persisted, the raw encoder and
+// decoder state of every Pair.
+//
+// Stored as a compact binary record:
+//   magic "MTRS", version (1 byte), generation (8 bytes, version 2+),
+//   clientId (2 byte length + UTF-8), pair count (4 bytes),
+//   then per Pair: pairId (2 byte length + UTF-8), encoder state and decoder state
+//   (4 byte length + raw bytes each).
+// The generation ties PairStateJournal records to the snapshot they update.
+// Files written before the binary format held a JSON object with Base64 states nested as a
+// string, parse() still reads those.
+class StoredHostState {
+
+    static class PairState {
+        final String pairId;
+        final byte[] encoderState;
+        final byte[] decoderState;
+
+        PairState(String pairId, byte[] encoderState, byte[] decoderState) {
+            this.pairId = pairId;
+            this.encoderState = encoderState;
+            this.decoderState = decoderState;
+        }
+    }
+
+    private static final byte[] MAGIC = {'M', 'T', 'R', 'S'};
+    private static final byte VERSION = 2;
+
+    final String clientId;
+    final List<PairState> pairStates;
+    long generation = 0;
+
+    StoredHostState(String clientId, List<PairState> pairStates) {
+        this.clientId = clientId == null ? "" : clientId;
+        this.pairStates = pairStates;
+    }
+
+    boolean hasPairStates() {
+        return !pairStates.isEmpty();
+    }
+
+    byte[] toBytes() {
+        byte[] clientIdBytes = clientId.getBytes(StandardCharsets.UTF_8);
+        byte[][] pairIdBytes = new byte[pairStates.size()][];
+        int size = MAGIC.length + 1 + 8 + 2 + clientIdBytes.length + 4;
+        for (int i = 0; i < pairStates.size(); i++) {
+            pairIdBytes[i] = pairStates.get(i).pairId.getBytes(StandardCharsets.UTF_8);
+            size += pairStateBytes(pairStates.get(i), pairIdBytes[i]);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.put(MAGIC).put(VERSION).putLong(generation);
+        buffer.putShort((short) clientIdBytes.length).put(clientIdBytes);
+        buffer.putInt(pairStates.size());
+        for (int i = 0; i < pairStates.size(); i++) {
+            putPairState(buffer, pairStates.get(i), pairIdBytes[i]);
+        }
+        return buffer.array();
+    }
+
+    // A single Pair's state in the same layout it has inside the full record.
+    static byte[] pairStateToBytes(PairState pairState) {
+        byte[] pairIdBytes = pairState.pairId.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(pairStateBytes(pairState, pairIdBytes));
+        putPairState(buffer, pairState, pairIdBytes);
+        return buffer.array();
+    }
+
+    static PairState parsePairState(byte[] bytes) {
+        try {
+            return getPairState(ByteBuffer.wrap(bytes));
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new RelayException("StoredHostState",
+                    "Stored pair record is truncated: Error: " + e.getMessage());
+        }
+    }
+
+    private static int pairStateBytes(PairState pairState, byte[] pairIdBytes) {
+        return 2 + pairIdBytes.length
+                + 4 + pairState.encoderState.length
+                + 4 + pairState.decoderState.length;
+    }
+
+    private static void putPairState(ByteBuffer buffer, PairState pairState, byte[] pairIdBytes) {
+        buffer.putShort((short) pairIdBytes.length).put(pairIdBytes);
+        buffer.putInt(pairState.encoderState.length).put(pairState.encoderState);
+        buffer.putInt(pairState.decoderState.length).put(pairState.decoderState);
+    }
+
+    private static PairState getPairState(ByteBuffer buffer) {
+        String pairId = readString(buffer, buffer.getShort() & 0xFFFF);
+        byte[] encoderState = readBytes(buffer, buffer.getInt());
+        byte[] decoderState = readBytes(buffer, buffer.getInt());
+        return new PairState(pairId, encoderState, decoderState);
+    }
+
+    static StoredHostState parse(byte[] bytes) {
+        if (isBinary(bytes)) {
+            return parseBinary(bytes);
+        }
+        return parseJson(new String(bytes, StandardCharsets.UTF_8));
+    }
+
+    private static boolean isBinary(byte[] bytes) {
+        return bytes.length > MAGIC.length
+                && Arrays.equals(Arrays.copyOf(bytes, MAGIC.length), MAGIC);
+    }
+
+    private static StoredHostState parseBinary(byte[] bytes) {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            buffer.position(MAGIC.length);
+            byte version = buffer.get();
+            if (version > VERSION) {
+                throw new RelayException("StoredHostState",
+                        "Unsupported stored host version " + version);
+            }
+            long generation = version >= 2 ? buffer.getLong() : 0;
+            String clientId = readString(buffer, buffer.getShort() & 0xFFFF);
+            int pairCount = buffer.getInt();
+            List<PairState> pairStates = new ArrayList<>(Math.min(Math.max(pairCount, 0), 64));
+            for (int i = 0; i < pairCount; i++) {
+                pairStates.add(getPairState(buffer));
+            }
+            StoredHostState storedHost = new StoredHostState(clientId, pairStates);
+            storedHost.generation = generation;
+            return storedHost;
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new RelayException("StoredHostState",
+                    "Stored host record is truncated: Error: " + e.getMessage());
+        }
+    }
+
+    private static StoredHostState parseJson(String storedHostStr) {
+        try {
+            JSONObject storedHost = new JSONObject(storedHostStr);
+            String clientId = storedHost.getString("clientId");
+            String pairMapStates = storedHost.optString("pairMapStates", "");
+            List<PairState> pairStates = new ArrayList<>();
+            // The states were written with android.util.Base64.DEFAULT, which wraps lines.
+            Base64.Decoder decoder = Base64.getMimeDecoder();
+            if (!pairMapStates.isEmpty()) {
+                JSONArray storedPairsArray = new JSONArray(pairMapStates);
+                for (int i = 0; i < storedPairsArray.length(); i++) {
+                    JSONObject storedPair = storedPairsArray.getJSONObject(i);
+                    pairStates.add(new PairState(storedPair.getString("pairId"),
+                            decoder.decode(storedPair.getString("encoderState")),
+                            decoder.decode(storedPair.getString("decoderState"))));
+                }
+            }
+            return new StoredHostState(clientId, pairStates);
+        } catch (JSONException e) {
+            throw new RelayException("StoredHostState",
+                    "JSONException: Error: " + e.getMessage());
+        }
+    }
+
+    private static String readString(ByteBuffer buffer, int length) {
+        return new String(readBytes(buffer, length), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readBytes(ByteBuffer buffer, int length) {
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("Invalid length " + length);
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+}
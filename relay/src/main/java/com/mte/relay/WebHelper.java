@@ -144,7 +144,7 @@ public class WebHelper {
         addToRequestQueue(request);
     }
 
-    public void sendBytes(RelayConnectionModel connectionModel, Request<byte[]> origRequest, RWHResponseListener listener) {
+    public Request<byte[]> sendBytes(RelayConnectionModel connectionModel, Request<byte[]> origRequest, RWHResponseListener listener) {
         RelayHeaders responseHeaders = new RelayHeaders();
         Request<byte[]> relayRequest = new Request<byte[]>(
                 connectionModel.method,
@@ -183,6 +183,7 @@ public class WebHelper {
                 0,
                 DefaultRetryPolicy.DEFAULT_BACKOFF_MULT));
         addToRequestQueue(relayRequest);
+        return relayRequest;
     }
 
     private void processResponseError(VolleyError error, RelayHeaders responseHeaders, RWHResponseListener listener) {
@@ -0,0 +1,199 @@
+// The MIT License (MIT)
+//
+// Copyright (c) Eclypses, Inc.
+//
+// All rights reserved.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+
+package com.mte.relay;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.ContextWrapper;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.Collections;
+
+import javax.crypto.spec.SecretKeySpec;
+
+public class HostStorageHelperTest {
+
+    private static final String HOST = "storage-test";
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private KeyHelper keyHelper;
+    private HostStorageHelper storageHelper;
+    private File hostFile;
+    private File backupFile;
+    private File tempFile;
+
+    @BeforeClass
+    public static void addProvider() {
+        // The JVM has no AES/CBC/PKCS7Padding, the Android default KeyHelper uses.
+        Security.addProvider(new BouncyCastleProvider());
+    }
+
+    @Before
+    public void setUp() {
+        File filesDir = tempFolder.getRoot();
+        keyHelper = new KeyHelper(HOST, new SecretKeySpec(new byte[16], "AES"));
+        storageHelper = new HostStorageHelper(new ContextWrapper(null) {
+            @Override
+            public File getFilesDir() {
+                return filesDir;
+            }
+        }, HOST, keyHelper);
+        hostFile = new File(filesDir, HOST + "-encryptedHostFile");
+        backupFile = new File(filesDir, HOST + "-encryptedHostFile.bak");
+        tempFile = new File(filesDir, HOST + "-encryptedHostFile.tmp");
+    }
+
+    @Test
+    public void savedHostReadsBack() {
+        storageHelper.saveHostToFile(storedHost("client", 1));
+
+        StoredHostState storedHost = storageHelper.readHostFromFile();
+
+        assertEquals("client", storedHost.clientId);
+        assertEquals(1, storedHost.generation);
+        assertPairState(storedHost, 1);
+        assertTrue(hostFile.exists());
+        assertFalse(tempFile.exists());
+        assertFalse(backupFile.exists());
+    }
+
+    @Test
+    public void previousGenerationIsKeptAsBackup() {
+        storageHelper.saveHostToFile(storedHost("client", 1));
+        storageHelper.saveHostToFile(storedHost("client", 2));
+
+        assertFalse(tempFile.exists());
+        assertTrue(backupFile.exists());
+        StoredHostState storedHost = storageHelper.readHostFromFile();
+        assertEquals(2, storedHost.generation);
+        assertPairState(storedHost, 2);
+    }
+
+    @Test
+    public void corruptHostFileFallsBackToBackup() throws IOException {
+        storageHelper.saveHostToFile(storedHost("client", 1));
+        storageHelper.saveHostToFile(storedHost("client", 2));
+        // Flip a byte of the encrypted record, the CRC no longer matches.
+        try (RandomAccessFile file = new RandomAccessFile(hostFile, "rw")) {
+            file.seek(20);
+            int value = file.read();
+            file.seek(20);
+            file.write(value ^ 0xFF);
+        }
+
+        StoredHostState storedHost = storageHelper.readHostFromFile();
+
+        assertEquals(1, storedHost.generation);
+        assertPairState(storedHost, 1);
+    }
+
+    @Test
+    public void missingHostFileFallsBackToBackup() {
+        storageHelper.saveHostToFile(storedHost("client", 1));
+        storageHelper.saveHostToFile(storedHost("client", 2));
+        // A crash between moving the old file aside and moving the new one in.
+        assertTrue(hostFile.delete());
+
+        StoredHostState storedHost = storageHelper.readHostFromFile();
+
+        assertEquals(1, storedHost.generation);
+        assertPairState(storedHost, 1);
+    }
+
+    @Test
+    public void noHostFileReadsNull() {
+        assertNull(storageHelper.readHostFromFile());
+    }
+
+    // Earlier versions wrote the encrypted record without magic or CRC.
+    @Test
+    public void readsBareEncryptedHostFile() throws IOException {
+        Files.write(hostFile.toPath(), keyHelper.encryptBytes(storedHost("client", 3).toBytes()));
+
+        StoredHostState storedHost = storageHelper.readHostFromFile();
+
+        assertEquals("client", storedHost.clientId);
+        assertPairState(storedHost, 3);
+    }
+
+    @Test
+    public void deleteRemovesEveryGeneration() {
+        storageHelper.saveHostToFile(storedHost("client", 1));
+        storageHelper.saveHostToFile(storedHost("client", 2));
+
+        storageHelper.deleteStoredHost();
+
+        assertFalse(hostFile.exists());
+        assertFalse(backupFile.exists());
+        assertNull(storageHelper.readHostFromFile());
+    }
+
+    @Test
+    public void journalUpdatesOnlyStoredPairs() {
+        storageHelper.saveHostToFile(storedHost("client", 1));
+
+        assertTrue(storageHelper.appendPairStates(Collections.singletonList(pairState("pair-a", 2))));
+        assertFalse(storageHelper.appendPairStates(Collections.singletonList(pairState("pair-b", 2))));
+    }
+
+    private static StoredHostState storedHost(String clientId, int version) {
+        return new StoredHostState(clientId, Collections.singletonList(pairState("pair-a", version)));
+    }
+
+    private static StoredHostState.PairState pairState(String pairId, int version) {
+        byte[] encoderState = new byte[32];
+        byte[] decoderState = new byte[32];
+        Arrays.fill(encoderState, (byte) version);
+        Arrays.fill(decoderState, (byte) (version + 100));
+        return new StoredHostState.PairState(pairId, encoderState, decoderState);
+    }
+
+    private static void assertPairState(StoredHostState storedHost, int version) {
+        StoredHostState.PairState expected = pairState("pair-a", version);
+        assertEquals(1, storedHost.pairStates.size());
+        assertEquals(expected.pairId, storedHost.pairStates.get(0).pairId);
+        assertArrayEquals(expected.encoderState, storedHost.pairStates.get(0).encoderState);
+        assertArrayEquals(expected.decoderState, storedHost.pairStates.get(0).decoderState);
+    }
+}
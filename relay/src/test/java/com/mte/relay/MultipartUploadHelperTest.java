@@ -0,0 +1,349 @@
+// The MIT License (MIT)
+//
+// Copyright (c) Eclypses, Inc.
+//
+// All rights reserved.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+package com.mte.relay;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
+
+// Runs MultipartUploadHelper against a MockWebServer standing in for a relay server that
+// supports multipart uploads. The parts are sent unencrypted, the MTE side is covered by
+// recording the encoder state marks and rewinds.
+public class MultipartUploadHelperTest {
+
+    private static final int PART_SIZE = 4;
+    // Drops the connection once the part is read, without answering.
+    private static final int NO_RESPONSE = 0;
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private final MockWebServer server = new MockWebServer();
+    // Statuses to answer with, per part, before the part is accepted.
+    private final Map<String, List<Integer>> failures = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> attempts = new ConcurrentHashMap<>();
+    private final Map<String, byte[]> receivedParts = new ConcurrentHashMap<>();
+    private final List<String> rewinds = Collections.synchronizedList(new ArrayList<>());
+    private final List<String> rejectedPairs = Collections.synchronizedList(new ArrayList<>());
+    private final List<Long> progressReports = Collections.synchronizedList(new ArrayList<>());
+
+    private long savedPartSize;
+    private int savedChunkSize;
+    private int savedRetries;
+    private File file;
+    private byte[] fileBytes;
+
+    @Before
+    public void setUp() throws IOException {
+        savedPartSize = RelaySettings.multipartUploadPartSize;
+        savedChunkSize = RelaySettings.streamChunkSize;
+        savedRetries = RelaySettings.multipartUploadPartRetries;
+        RelaySettings.multipartUploadPartSize = PART_SIZE;
+        RelaySettings.streamChunkSize = 1;
+        RelaySettings.multipartUploadPartRetries = 2;
+
+        // A dropped connection must fail the part, not be retried by HttpURLConnection.
+        System.setProperty("sun.net.http.retryPost", "false");
+
+        fileBytes = "0123456789".getBytes("UTF-8");
+        file = tempFolder.newFile("upload.bin");
+        Files.write(file.toPath(), fileBytes);
+
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                String part = request.getHeader(MultipartUploadHelper.UPLOAD_PART_HEADER);
+                int attempt = attempts.computeIfAbsent(part, p -> new AtomicInteger()).getAndIncrement();
+                List<Integer> statuses = failures.get(part);
+                if (statuses != null && attempt < statuses.size()) {
+                    if (statuses.get(attempt) == NO_RESPONSE) {
+                        return new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AFTER_REQUEST);
+                    }
+                    return new MockResponse().setResponseCode(statuses.get(attempt));
+                }
+                receivedParts.put(part, request.getBody().readByteArray());
+                return new MockResponse().setBody("{}");
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        RelaySettings.multipartUploadPartSize = savedPartSize;
+        RelaySettings.streamChunkSize = savedChunkSize;
+        RelaySettings.multipartUploadPartRetries = savedRetries;
+        server.shutdown();
+    }
+
+    @Test
+    public void uploadsFileInParts() {
+        MultipartUploadHelper upload = newUpload(new RelayCall());
+
+        assertEquals(2, upload.getMaxParallelism());
+        assertNull(upload.uploadParts(Arrays.asList("pair-0", "pair-1")));
+
+        assertEquals(3, server.getRequestCount());
+        assertArrayEquals(Arrays.copyOfRange(fileBytes, 0, 4), receivedParts.get("0"));
+        assertArrayEquals(Arrays.copyOfRange(fileBytes, 4, 8), receivedParts.get("1"));
+        assertArrayEquals(Arrays.copyOfRange(fileBytes, 8, 10), receivedParts.get("2"));
+    }
+
+    @Test
+    public void sendsPartHeaders() throws InterruptedException {
+        MultipartUploadHelper upload = newUpload(new RelayCall());
+
+        assertNull(upload.uploadParts(Collections.singletonList("pair-0")));
+
+        String uploadId = null;
+        for (int i = 0; i < 3; i++) {
+            RecordedRequest request = server.takeRequest(1, TimeUnit.SECONDS);
+            assertNotNull(request);
+            int part = Integer.parseInt(request.getHeader(MultipartUploadHelper.UPLOAD_PART_HEADER));
+            assertEquals(String.valueOf(part * PART_SIZE),
+                    request.getHeader(MultipartUploadHelper.UPLOAD_OFFSET_HEADER));
+            String partUploadId = request.getHeader(MultipartUploadHelper.UPLOAD_ID_HEADER);
+            assertNotNull(partUploadId);
+            if (uploadId != null) {
+                assertEquals(uploadId, partUploadId);
+            }
+            uploadId = partUploadId;
+        }
+    }
+
+    @Test
+    public void retriesOnlyThePartThatGotNoResponse() {
+        failures.put("1", Arrays.asList(NO_RESPONSE, NO_RESPONSE));
+        MultipartUploadHelper upload = newUpload(new RelayCall());
+
+        assertNull(upload.uploadParts(Collections.singletonList("pair-0")));
+
+        assertEquals(1, attempts.get("0").get());
+        assertEquals(3, attempts.get("1").get());
+        assertEquals(1, attempts.get("2").get());
+        assertArrayEquals(Arrays.copyOfRange(fileBytes, 4, 8), receivedParts.get("1"));
+        // Each retry starts from the state marked before part 1.
+        assertEquals(Arrays.asList("pair-0:1", "pair-0:1"), rewinds);
+    }
+
+    @Test
+    public void failsAfterTheRetriesRunOut() {
+        failures.put("2", Arrays.asList(NO_RESPONSE, NO_RESPONSE, NO_RESPONSE));
+        MultipartUploadHelper upload = newUpload(new RelayCall());
+
+        String error = upload.uploadParts(Collections.singletonList("pair-0"));
+
+        assertNotNull(error);
+        assertTrue(error, error.startsWith("Part 2 of 3 failed."));
+        assertEquals(3, attempts.get("2").get());
+        // The Pair goes back to the pool at the state the server still has.
+        assertEquals(3, rewinds.size());
+    }
+
+    // The server decoded the part before answering with an error, so its Pair can't be rewound
+    // or retried on. It is replaced, and the upload fails.
+    @Test
+    public void errorResponseReplacesThePair() {
+        failures.put("1", Collections.singletonList(500));
+        MultipartUploadHelper upload = newUpload(new RelayCall());
+
+        String error = upload.uploadParts(Collections.singletonList("pair-0"));
+
+        assertNotNull(error);
+        assertTrue(error, error.startsWith("Part 1 of 3 failed."));
+        assertEquals(1, attempts.get("1").get());
+        assertEquals(Collections.singletonList("pair-0:500"), rejectedPairs);
+        assertTrue(rewinds.isEmpty());
+        // No more parts are sent once the upload failed.
+        assertNull(attempts.get("2"));
+    }
+
+    @Test
+    public void rejectedPairIsNotRetried() {
+        failures.put("0", Collections.singletonList(560));
+        MultipartUploadHelper upload = newUpload(new RelayCall());
+
+        assertNotNull(upload.uploadParts(Collections.singletonList("pair-0")));
+
+        assertEquals(1, attempts.get("0").get());
+        assertEquals(Collections.singletonList("pair-0:560"), rejectedPairs);
+        assertTrue(rewinds.isEmpty());
+    }
+
+    @Test
+    public void progressSumsToFileLength() {
+        failures.put("0", Collections.singletonList(NO_RESPONSE));
+        MultipartUploadHelper upload = newUpload(new RelayCall());
+
+        assertNull(upload.uploadParts(Arrays.asList("pair-0", "pair-1")));
+
+        assertEquals(Long.valueOf(fileBytes.length), progressReports.get(progressReports.size() - 1));
+        for (long reported : progressReports) {
+            assertTrue(0 <= reported && reported <= fileBytes.length);
+        }
+    }
+
+    @Test
+    public void cancelStopsTheUpload() {
+        RelayCall call = new RelayCall();
+        call.cancel();
+        MultipartUploadHelper upload = newUpload(call);
+
+        assertEquals("Upload cancelled.", upload.uploadParts(Collections.singletonList("pair-0")));
+        assertEquals(0, server.getRequestCount());
+    }
+
+    @Test
+    public void manifestListsParts() throws Exception {
+        MultipartUploadHelper upload = newUpload(new RelayCall());
+
+        JSONObject manifest = upload.createManifest();
+
+        assertEquals("upload.bin", manifest.getString("fileName"));
+        assertEquals(fileBytes.length, manifest.getLong("size"));
+        assertNotNull(manifest.getString("uploadId"));
+        JSONArray parts = manifest.getJSONArray("parts");
+        assertEquals(3, parts.length());
+        long[] lengths = {4, 4, 2};
+        for (int part = 0; part < parts.length(); part++) {
+            JSONObject entry = parts.getJSONObject(part);
+            assertEquals(part, entry.getInt("part"));
+            assertEquals(part * PART_SIZE, entry.getLong("offset"));
+            assertEquals(lengths[part], entry.getLong("length"));
+        }
+        assertArrayEquals(new String[]{MultipartUploadHelper.UPLOAD_MANIFEST_HEADER},
+                upload.getManifestHeadersToEncrypt());
+    }
+
+    private MultipartUploadHelper newUpload(RelayCall call) {
+        RelayFileRequestProperties reqProperties = new RelayFileRequestProperties(file,
+                server.url("/").toString(),
+                null,
+                null);
+        return new MultipartUploadHelper(new TestPartUploader(),
+                reqProperties,
+                "/upload",
+                new RelayStreamCompletionCallback() {
+                    @Override
+                    public void onProgressUpdate(int bytesCompleted, int totalBytes) {
+                        onProgressUpdate((long) bytesCompleted, (long) totalBytes);
+                    }
+
+                    @Override
+                    public void onProgressUpdate(long bytesCompleted, long totalBytes) {
+                        assertEquals(fileBytes.length, totalBytes);
+                        progressReports.add(bytesCompleted);
+                    }
+                },
+                call);
+    }
+
+    // Sends each part as it is, a byte at a time so progress is reported along the way. The
+    // encoder state of a Pair is the number of parts encoded with it.
+    private class TestPartUploader implements MultipartUploadHelper.PartUploader {
+
+        private final Map<String, Integer> encoderStates = new ConcurrentHashMap<>();
+
+        @Override
+        public byte[] markEncoderState(String pairId) {
+            return new byte[]{encoderStates.getOrDefault(pairId, 0).byteValue()};
+        }
+
+        @Override
+        public void rewindEncoderState(String pairId, byte[] state) {
+            rewinds.add(pairId + ":" + state[0]);
+            encoderStates.put(pairId, (int) state[0]);
+        }
+
+        @Override
+        public MultipartUploadHelper.PartResult uploadPart(String pairId,
+                                                           Map<String, String> partHeaders,
+                                                           long offset,
+                                                           long length,
+                                                           RelayStreamCompletionCallback progress) {
+            encoderStates.merge(pairId, 1, Integer::sum);
+            try {
+                HttpURLConnection connection = (HttpURLConnection) server.url("/upload").url().openConnection();
+                connection.setDoOutput(true);
+                connection.setFixedLengthStreamingMode(length);
+                for (Map.Entry<String, String> header : partHeaders.entrySet()) {
+                    connection.setRequestProperty(header.getKey(), header.getValue());
+                }
+                try (RandomAccessFile part = new RandomAccessFile(file, "r");
+                     OutputStream outputStream = connection.getOutputStream()) {
+                    part.seek(offset);
+                    for (long sent = 1; sent <= length; sent++) {
+                        outputStream.write(part.read());
+                        progress.onProgressUpdate(sent, length);
+                    }
+                }
+                int status = connection.getResponseCode();
+                connection.disconnect();
+                if (status != HttpURLConnection.HTTP_OK) {
+                    return new MultipartUploadHelper.PartResult(status, "Server returned non-OK status: " + status);
+                }
+                return MultipartUploadHelper.PartResult.OK;
+            } catch (IOException e) {
+                return new MultipartUploadHelper.PartResult(0, e.getMessage());
+            }
+        }
+
+        @Override
+        public void rejectPair(int status, String pairId) {
+            rejectedPairs.add(pairId + ":" + status);
+        }
+    }
+}
@@ -0,0 +1,199 @@
+// The MIT License (MIT)
+//
+// Copyright (c) Eclypses, Inc.
+//
+// All rights reserved.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+package com.mte.relay;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.crypto.spec.SecretKeySpec;
+
+public class PairStateJournalTest {
+
+    private static final long GENERATION = 7;
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private KeyHelper keyHelper;
+    private File journalFile;
+    private StoredHostState snapshot;
+
+    @BeforeClass
+    public static void addProvider() {
+        // The JVM has no AES/CBC/PKCS7Padding, the Android default KeyHelper uses.
+        Security.addProvider(new BouncyCastleProvider());
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        keyHelper = new KeyHelper("journal-test", new SecretKeySpec(new byte[16], "AES"));
+        journalFile = new File(tempFolder.getRoot(), "host-pairJournal");
+        snapshot = new StoredHostState("client", Arrays.asList(
+                pairState("pair-a", 0),
+                pairState("pair-b", 0)));
+        snapshot.generation = GENERATION;
+    }
+
+    @Test
+    public void replaysTheLatestRecordOfEachPair() throws IOException {
+        PairStateJournal journal = new PairStateJournal(journalFile, keyHelper);
+        journal.append(GENERATION, Collections.singletonList(pairState("pair-a", 1)));
+        journal.append(GENERATION, Arrays.asList(pairState("pair-a", 2), pairState("pair-b", 3)));
+
+        StoredHostState replayed = new PairStateJournal(journalFile, keyHelper).replay(snapshot);
+
+        assertEquals("client", replayed.clientId);
+        assertEquals(GENERATION, replayed.generation);
+        assertState(replayed.pairStates, "pair-a", 2);
+        assertState(replayed.pairStates, "pair-b", 3);
+    }
+
+    @Test
+    public void ignoresRecordsOfOtherGenerationsAndPairs() throws IOException {
+        PairStateJournal journal = new PairStateJournal(journalFile, keyHelper);
+        journal.append(GENERATION - 1, Collections.singletonList(pairState("pair-a", 1)));
+        journal.append(GENERATION, Collections.singletonList(pairState("pair-c", 2)));
+
+        StoredHostState replayed = new PairStateJournal(journalFile, keyHelper).replay(snapshot);
+
+        assertEquals(2, replayed.pairStates.size());
+        assertState(replayed.pairStates, "pair-a", 0);
+        assertState(replayed.pairStates, "pair-b", 0);
+    }
+
+    @Test
+    public void tornTailIsCutOffSoLaterAppendsReplay() throws IOException {
+        PairStateJournal journal = new PairStateJournal(journalFile, keyHelper);
+        journal.append(GENERATION, Collections.singletonList(pairState("pair-a", 1)));
+        long validLength = journalFile.length();
+        journal.append(GENERATION, Collections.singletonList(pairState("pair-b", 2)));
+        // A crash part way through the second append.
+        setLength(validLength + 10);
+
+        journal = new PairStateJournal(journalFile, keyHelper);
+        StoredHostState replayed = journal.replay(snapshot);
+
+        assertState(replayed.pairStates, "pair-a", 1);
+        assertState(replayed.pairStates, "pair-b", 0);
+        assertEquals(validLength, journalFile.length());
+        assertEquals(1, journal.getRecordCount());
+        assertFalse(journal.needsCompaction());
+
+        journal.append(GENERATION, Collections.singletonList(pairState("pair-b", 3)));
+        replayed = new PairStateJournal(journalFile, keyHelper).replay(snapshot);
+
+        assertState(replayed.pairStates, "pair-a", 1);
+        assertState(replayed.pairStates, "pair-b", 3);
+    }
+
+    @Test
+    public void corruptRecordIsCutOffSoLaterAppendsReplay() throws IOException {
+        PairStateJournal journal = new PairStateJournal(journalFile, keyHelper);
+        journal.append(GENERATION, Collections.singletonList(pairState("pair-a", 1)));
+        long validLength = journalFile.length();
+        journal.append(GENERATION, Collections.singletonList(pairState("pair-b", 2)));
+        journal.append(GENERATION, Collections.singletonList(pairState("pair-a", 4)));
+        // Flip a payload byte of the second record, its CRC no longer matches.
+        flipByte(validLength + 20);
+
+        journal = new PairStateJournal(journalFile, keyHelper);
+        StoredHostState replayed = journal.replay(snapshot);
+
+        // Nothing after the corrupt record is trusted.
+        assertState(replayed.pairStates, "pair-a", 1);
+        assertState(replayed.pairStates, "pair-b", 0);
+        assertEquals(validLength, journalFile.length());
+
+        journal.append(GENERATION, Collections.singletonList(pairState("pair-b", 5)));
+        replayed = new PairStateJournal(journalFile, keyHelper).replay(snapshot);
+
+        assertState(replayed.pairStates, "pair-a", 1);
+        assertState(replayed.pairStates, "pair-b", 5);
+    }
+
+    @Test
+    public void truncateEmptiesTheJournal() throws IOException {
+        PairStateJournal journal = new PairStateJournal(journalFile, keyHelper);
+        journal.append(GENERATION, Collections.singletonList(pairState("pair-a", 1)));
+
+        journal.truncate();
+
+        assertFalse(journalFile.exists());
+        assertEquals(0, journal.getRecordCount());
+        assertState(journal.replay(snapshot).pairStates, "pair-a", 0);
+    }
+
+    private static StoredHostState.PairState pairState(String pairId, int version) {
+        byte[] encoderState = new byte[32];
+        byte[] decoderState = new byte[32];
+        Arrays.fill(encoderState, (byte) version);
+        Arrays.fill(decoderState, (byte) (version + 100));
+        return new StoredHostState.PairState(pairId, encoderState, decoderState);
+    }
+
+    private static void assertState(List<StoredHostState.PairState> pairStates, String pairId, int version) {
+        StoredHostState.PairState expected = pairState(pairId, version);
+        for (StoredHostState.PairState pairState : pairStates) {
+            if (pairState.pairId.equals(pairId)) {
+                assertArrayEquals(expected.encoderState, pairState.encoderState);
+                assertArrayEquals(expected.decoderState, pairState.decoderState);
+                return;
+            }
+        }
+        fail("No state for " + pairId);
+    }
+
+    private void setLength(long length) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(journalFile, "rw")) {
+            file.setLength(length);
+        }
+    }
+
+    private void flipByte(long position) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(journalFile, "rw")) {
+            file.seek(position);
+            int value = file.read();
+            file.seek(position);
+            file.write(value ^ 0xFF);
+        }
+    }
+}
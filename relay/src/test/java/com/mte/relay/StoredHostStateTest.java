@@ -0,0 +1,173 @@
+// The MIT License (MIT)
+//
+// Copyright (c) Eclypses, Inc.
+//
+// All rights reserved.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+
+package com.mte.relay;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+
+public class StoredHostStateTest {
+
+    @Test
+    public void binaryRecordRoundTrips() {
+        StoredHostState storedHost = new StoredHostState("client", Arrays.asList(
+                pairState("pair-a", 1),
+                pairState("pair-b", 2)));
+        storedHost.generation = 42;
+
+        StoredHostState parsed = StoredHostState.parse(storedHost.toBytes());
+
+        assertEquals("client", parsed.clientId);
+        assertEquals(42, parsed.generation);
+        assertEquals(2, parsed.pairStates.size());
+        assertPairState(pairState("pair-a", 1), parsed.pairStates.get(0));
+        assertPairState(pairState("pair-b", 2), parsed.pairStates.get(1));
+    }
+
+    @Test
+    public void clientOnlyRecordRoundTrips() {
+        StoredHostState parsed = StoredHostState.parse(
+                new StoredHostState("client", Collections.emptyList()).toBytes());
+
+        assertEquals("client", parsed.clientId);
+        assertFalse(parsed.hasPairStates());
+    }
+
+    @Test
+    public void pairStateRoundTrips() {
+        StoredHostState.PairState pairState = pairState("pair-a", 3);
+
+        assertPairState(pairState,
+                StoredHostState.parsePairState(StoredHostState.pairStateToBytes(pairState)));
+    }
+
+    // Version 1 records have no generation.
+    @Test
+    public void readsVersionOneRecord() {
+        StoredHostState.PairState pairState = pairState("pair-a", 1);
+        byte[] clientId = "client".getBytes(StandardCharsets.UTF_8);
+        byte[] pairStateBytes = StoredHostState.pairStateToBytes(pairState);
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 1 + 2 + clientId.length + 4 + pairStateBytes.length);
+        buffer.put(new byte[]{'M', 'T', 'R', 'S'}).put((byte) 1);
+        buffer.putShort((short) clientId.length).put(clientId);
+        buffer.putInt(1).put(pairStateBytes);
+
+        StoredHostState parsed = StoredHostState.parse(buffer.array());
+
+        assertEquals("client", parsed.clientId);
+        assertEquals(0, parsed.generation);
+        assertEquals(1, parsed.pairStates.size());
+        assertPairState(pairState, parsed.pairStates.get(0));
+    }
+
+    @Test
+    public void readsLegacyJsonRecord() throws Exception {
+        StoredHostState.PairState pairState = pairState("pair-a", 1);
+        JSONObject storedPair = new JSONObject();
+        storedPair.put("pairId", pairState.pairId);
+        // android.util.Base64.DEFAULT wrapped lines every 76 characters.
+        storedPair.put("encoderState", Base64.getMimeEncoder().encodeToString(pairState.encoderState));
+        storedPair.put("decoderState", Base64.getMimeEncoder().encodeToString(pairState.decoderState));
+        JSONObject storedHost = new JSONObject();
+        storedHost.put("clientId", "client");
+        storedHost.put("pairMapStates", new JSONArray().put(storedPair).toString());
+
+        StoredHostState parsed = StoredHostState.parse(
+                storedHost.toString().getBytes(StandardCharsets.UTF_8));
+
+        assertEquals("client", parsed.clientId);
+        assertEquals(0, parsed.generation);
+        assertEquals(1, parsed.pairStates.size());
+        assertPairState(pairState, parsed.pairStates.get(0));
+    }
+
+    @Test
+    public void truncatedRecordIsRejected() {
+        byte[] bytes = new StoredHostState("client",
+                Collections.singletonList(pairState("pair-a", 1))).toBytes();
+
+        for (int length : new int[]{5, 14, 20, bytes.length - 1}) {
+            try {
+                StoredHostState.parse(Arrays.copyOf(bytes, length));
+                fail("Parsed a record truncated to " + length + " bytes");
+            } catch (RelayException e) {
+                assertTrue(e.getMessage().contains("truncated"));
+            }
+        }
+    }
+
+    @Test
+    public void truncatedPairStateIsRejected() {
+        byte[] bytes = StoredHostState.pairStateToBytes(pairState("pair-a", 1));
+
+        try {
+            StoredHostState.parsePairState(Arrays.copyOf(bytes, bytes.length - 1));
+            fail("Parsed a truncated pair state");
+        } catch (RelayException e) {
+            assertTrue(e.getMessage().contains("truncated"));
+        }
+    }
+
+    @Test
+    public void newerVersionIsRejected() {
+        byte[] bytes = new StoredHostState("client", Collections.emptyList()).toBytes();
+        bytes[4] = 3;
+
+        try {
+            StoredHostState.parse(bytes);
+            fail("Parsed an unsupported version");
+        } catch (RelayException e) {
+            assertTrue(e.getMessage().contains("version 3"));
+        }
+    }
+
+    private static StoredHostState.PairState pairState(String pairId, int version) {
+        byte[] encoderState = new byte[64];
+        byte[] decoderState = new byte[64];
+        Arrays.fill(encoderState, (byte) version);
+        Arrays.fill(decoderState, (byte) (version + 100));
+        return new StoredHostState.PairState(pairId, encoderState, decoderState);
+    }
+
+    private static void assertPairState(StoredHostState.PairState expected,
+                                        StoredHostState.PairState actual) {
+        assertEquals(expected.pairId, actual.pairId);
+        assertArrayEquals(expected.encoderState, actual.encoderState);
+        assertArrayEquals(expected.decoderState, actual.decoderState);
+    }
+}